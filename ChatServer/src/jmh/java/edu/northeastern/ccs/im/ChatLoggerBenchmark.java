@@ -0,0 +1,122 @@
+package edu.northeastern.ccs.im;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.northeastern.ccs.im.ChatLogger.Category;
+
+/**
+ * Benchmarks of logging the way the server does for every message it sends.
+ * The real handlers are replaced by one which formats each record and throws
+ * it away, so the cost of the logger is measured rather than that of the
+ * console or the disk.
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatLoggerBenchmark {
+
+	/** Whether records are written on the calling thread or the writer thread. */
+	@Param({ "false", "true" })
+	public boolean async;
+
+	/** Message logged by each invocation. */
+	private Message message;
+
+	/** Handlers the logger had before the benchmark. */
+	private Handler[] original;
+
+	/**
+	 * Replace the logger's handlers with one which formats and discards records.
+	 */
+	@Setup
+	public void prepare() {
+		message = Message.makeBroadcastMessage("Thomas", "Hello everybody");
+		ChatLogger.setLevel(Category.CLIENT, Level.INFO);
+		Logger logger = Logger.getLogger(ChatLogger.class.getName());
+		original = logger.getHandlers();
+		for (Handler handler : original) {
+			logger.removeHandler(handler);
+		}
+		logger.addHandler(new Handler() {
+			private final SimpleFormatter formatter = new SimpleFormatter();
+
+			@Override
+			public void publish(LogRecord record) {
+				formatter.format(record);
+			}
+
+			@Override
+			public void flush() {
+				// nothing to do here
+			}
+
+			@Override
+			public void close() {
+				// nothing to do here
+			}
+		});
+		ChatLogger.setAsync(async);
+	}
+
+	/**
+	 * Put the logger's handlers back.
+	 */
+	@TearDown
+	public void restore() {
+		ChatLogger.setAsync(false);
+		Logger logger = Logger.getLogger(ChatLogger.class.getName());
+		for (Handler handler : logger.getHandlers()) {
+			logger.removeHandler(handler);
+		}
+		for (Handler handler : original) {
+			logger.addHandler(handler);
+		}
+	}
+
+	/**
+	 * Log a message being sent, as ClientRunnable does.
+	 */
+	@Benchmark
+	public void infoParameterized() {
+		ChatLogger.info(Category.CLIENT, "\t{0}", message);
+	}
+
+	/**
+	 * Log a message being sent by building the String first.
+	 */
+	@Benchmark
+	public void infoConcatenated() {
+		ChatLogger.info("\t" + message);
+	}
+
+	/**
+	 * Log a debugging message while debugging is off.
+	 */
+	@Benchmark
+	public void debugDisabled() {
+		ChatLogger.debug(Category.CLIENT, "At this point, isInitialized? {0}", Boolean.TRUE);
+	}
+}
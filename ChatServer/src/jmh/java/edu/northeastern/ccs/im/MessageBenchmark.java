@@ -0,0 +1,117 @@
+package edu.northeastern.ccs.im;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of turning bytes read from the network into messages and
+ * messages into the bytes written to the network.
+ *
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	/** Number of messages in the buffer parsed by each invocation. */
+	private static final int FRAMES = 256;
+
+	/** Name of the sender of every message. */
+	private static final String SENDER = "Thomas";
+
+	/** Text of every message. */
+	private static final String TEXT = "Hello everybody, how is the weather over there?";
+
+	/** Framing the messages are in. */
+	@Param({ "text", "binary" })
+	private String framing;
+
+	/** Buffer holding the messages, as NetworkConnection reads them. */
+	private ByteBuffer frames;
+
+	/** Framing selected by the parameter. */
+	private WireFormat format;
+
+	/** A message which arrived from the network. */
+	private Message received;
+
+	/**
+	 * Fill the buffer with messages the way a busy client would send them.
+	 */
+	@Setup
+	public void prepare() {
+		format = WireFormat.fromName(framing);
+		frames = ByteBuffer.allocate(64 * 1024);
+		for (int i = 0; i < FRAMES; i++) {
+			frames.put(Message.makeBroadcastMessage(SENDER, TEXT + i).getEncoded(format));
+		}
+		frames.flip();
+		received = new FrameParser().next(frames.duplicate());
+	}
+
+	/**
+	 * Parse every message in the buffer, as a client's connection does after a
+	 * read.
+	 *
+	 * @param bh Sink for the messages parsed.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void parse(Blackhole bh) {
+		ByteBuffer buff = frames.duplicate();
+		FrameParser parser = new FrameParser();
+		Message msg;
+		while ((msg = parser.next(buff)) != null) {
+			bh.consume(msg);
+		}
+	}
+
+	/**
+	 * Build the String form of a message created on the server.
+	 *
+	 * @return The String form.
+	 */
+	@Benchmark
+	public String encodeToString() {
+		return Message.makeBroadcastMessage(SENDER, TEXT).toString();
+	}
+
+	/**
+	 * Encode a message created on the server into the bytes written to clients.
+	 *
+	 * @return The encoded bytes.
+	 */
+	@Benchmark
+	public ByteBuffer encodeNew() {
+		return Message.makeBroadcastMessage(SENDER, TEXT).getEncoded(format);
+	}
+
+	/**
+	 * Get the bytes of a message which arrived from the network, which passes on
+	 * the bytes it arrived as.
+	 *
+	 * @return The encoded bytes.
+	 */
+	@Benchmark
+	public ByteBuffer encodeReceived() {
+		return received.getEncoded(format);
+	}
+}
@@ -0,0 +1,59 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the inactivity timer every client updates each time it sends a
+ * message and checks each time it is run.
+ *
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientTimerBenchmark {
+
+	/** Timer of a client which has logged in. */
+	private ClientTimer timer;
+
+	/**
+	 * Create the timer.
+	 */
+	@Setup
+	public void prepare() {
+		timer = new ClientTimer();
+		timer.updateAfterInitialization();
+	}
+
+	/**
+	 * Push the deadline back after the client was active.
+	 */
+	@Benchmark
+	public void updateAfterActivity() {
+		timer.updateAfterActivity();
+	}
+
+	/**
+	 * Check whether the client has been inactive too long.
+	 *
+	 * @return True if the client is behind; false otherwise.
+	 */
+	@Benchmark
+	public boolean isBehind() {
+		return timer.isBehind();
+	}
+}
@@ -0,0 +1,101 @@
+package edu.northeastern.ccs.im.server;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.northeastern.ccs.im.Message;
+import edu.northeastern.ccs.im.NetworkConnection;
+
+/**
+ * Benchmark of broadcasting a message to every client logged in. The clients
+ * are logged in directly rather than over the network, and all share a single
+ * unconnected channel, so only the fan-out itself is measured: walking the
+ * registry and queueing the message for each client. Each client's queue is
+ * kept small so that the benchmark runs in steady state with the oldest
+ * messages being dropped.
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dprattle.queue.messages=16", "-Dchatlogger.level.network=OFF" })
+public class FanOutBenchmark {
+
+	/** Number of clients logged in. */
+	@Param({ "10", "100", "1000", "10000", "100000" })
+	public int subscribers;
+
+	/** Channel shared by all of the clients. */
+	private SocketChannel channel;
+
+	/** Clients logged in for the benchmark. */
+	private List<ClientRunnable> clients;
+
+	/** Message broadcast by each invocation. */
+	private Message message;
+
+	/**
+	 * Log in the clients.
+	 *
+	 * @throws Exception Exception thrown if the clients cannot be created.
+	 */
+	@Setup
+	public void logIn() throws Exception {
+		channel = SocketChannel.open();
+		NetworkConnection connection = new NetworkConnection(channel);
+		Field userId = ClientRunnable.class.getDeclaredField("userId");
+		Field initialized = ClientRunnable.class.getDeclaredField("initialized");
+		userId.setAccessible(true);
+		initialized.setAccessible(true);
+		clients = new ArrayList<>(subscribers);
+		for (int i = 0; i < subscribers; i++) {
+			ClientRunnable tt = new ClientRunnable(connection);
+			tt.setName("user" + i);
+			userId.setInt(tt, i + 1);
+			initialized.setBoolean(tt, true);
+			Prattle.addLoggedInClient(tt);
+			clients.add(tt);
+		}
+		message = Message.makeBroadcastMessage("Thomas", "Hello everybody");
+	}
+
+	/**
+	 * Log the clients out again.
+	 *
+	 * @throws Exception Exception thrown if the channel cannot be closed.
+	 */
+	@TearDown
+	public void logOut() throws Exception {
+		for (ClientRunnable tt : clients) {
+			Prattle.removeClient(tt);
+		}
+		channel.close();
+	}
+
+	/**
+	 * Broadcast a message to every client.
+	 */
+	@Benchmark
+	public void broadcast() {
+		Prattle.broadcastMessage(message);
+	}
+}
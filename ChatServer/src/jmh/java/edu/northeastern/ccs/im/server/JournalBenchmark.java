@@ -0,0 +1,101 @@
+package edu.northeastern.ccs.im.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.northeastern.ccs.im.Message;
+
+/**
+ * Benchmark of handing broadcast messages to the message journal, which is
+ * what every broadcast pays for being recorded. Each invocation appends a new
+ * message, so its encoding is not cached, and runs for long enough that the
+ * writer thread, not the ring buffer, sets the steady-state rate. The average
+ * time mode shows the latency a sender sees on top of queueing the message.
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+	/** Size of each segment file in bytes. */
+	private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	/** Number of messages that may be waiting for the writer. */
+	private static final int CAPACITY = 4096;
+
+	/** Least time between forces, in milliseconds. */
+	private static final long INTERVAL = 100;
+
+	/** How often the journal is forced out to the disk. */
+	@Param({ "NEVER", "INTERVAL", "ALWAYS" })
+	public FsyncPolicy policy;
+
+	/** Directory holding the journal's segment files. */
+	private Path directory;
+
+	/** Journal being appended to. */
+	private MessageJournal journal;
+
+	/** Sequence number of the next message appended. */
+	private long count;
+
+	/**
+	 * Open a journal in a new temporary directory.
+	 *
+	 * @throws IOException Exception thrown if the journal cannot be opened.
+	 */
+	@Setup
+	public void open() throws IOException {
+		directory = Files.createTempDirectory("journal-bench");
+		journal = new MessageJournal(directory, SEGMENT_BYTES, policy, INTERVAL, CAPACITY);
+		count = journal.getNextSequence();
+	}
+
+	/**
+	 * Close the journal and delete its files.
+	 *
+	 * @throws IOException Exception thrown if the files cannot be deleted.
+	 */
+	@TearDown
+	public void close() throws IOException {
+		journal.close();
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	/**
+	 * Append a new broadcast message to the journal.
+	 *
+	 * @return Whether the journal accepted the message.
+	 */
+	@Benchmark
+	public boolean append() {
+		long sequence = count++;
+		return journal.append(sequence, Message.makeBroadcastMessage("Thomas", "Hello everybody " + sequence));
+	}
+}
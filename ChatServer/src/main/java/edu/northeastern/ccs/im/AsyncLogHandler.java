@@ -0,0 +1,222 @@
+package edu.northeastern.ccs.im;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler which takes log records off the calling thread. Records are pushed
+ * into a lock-free ring buffer and a dedicated writer thread hands them to the
+ * real handlers in batches, flushing once per batch rather than once per
+ * record. The thread that logged a message never waits for the disk.
+ *
+ * When the ring buffer is full, the overflow policy decides whether the record
+ * is dropped (and counted, with a warning once the writer catches up) or the
+ * caller waits for room. A caller waiting for room sleeps rather than spins,
+ * and once the writer has stopped the record is dropped whatever the policy,
+ * since nothing will ever make room.
+ *
+ * @version 1.0
+ */
+final class AsyncLogHandler extends Handler {
+
+	/** Most records handed to the real handlers between flushes. */
+	private static final int BATCH_SIZE = 256;
+
+	/** How long the writer sleeps when there is nothing to write. */
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	/** How long a caller sleeps before looking again for room or for the writer. */
+	private static final long CALLER_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Enumeration of what to do with a record when the ring buffer is full.
+	 */
+	enum OverflowPolicy {
+		/** Throw the record away and count it. */
+		DROP,
+		/** Have the caller wait until the writer makes room. */
+		BLOCK;
+	}
+
+	/** Number of records dropped by every handler since the server started. */
+	private static final LongAdder TOTAL_DROPPED = new LongAdder();
+
+	/** Handlers which actually write the records. */
+	private final Handler[] targets;
+
+	/** Records waiting to be written. */
+	private final RingBuffer<LogRecord> ring;
+
+	/** What to do when the ring buffer is full. */
+	private final OverflowPolicy overflow;
+
+	/** Number of records dropped since the writer last reported it. */
+	private final AtomicLong dropped;
+
+	/** Number of records accepted into the ring buffer. */
+	private final AtomicLong accepted;
+
+	/** Number of records the writer has handed to the real handlers. */
+	private volatile long written;
+
+	/** Thread writing the records. */
+	private final Thread writer;
+
+	/** Whether the writer should keep running. */
+	private volatile boolean running;
+
+	/**
+	 * Create the handler and start its writer thread.
+	 *
+	 * @param handlers Handlers which actually write the records.
+	 * @param capacity Number of records the ring buffer holds.
+	 * @param policy   What to do when the ring buffer is full.
+	 */
+	AsyncLogHandler(Handler[] handlers, int capacity, OverflowPolicy policy) {
+		targets = handlers.clone();
+		ring = new RingBuffer<>(capacity);
+		overflow = policy;
+		dropped = new AtomicLong();
+		accepted = new AtomicLong();
+		running = true;
+		setLevel(Level.ALL);
+		writer = new Thread(this::writeRecords, "chatlogger-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!isLoggable(record)) {
+			return;
+		}
+		while (!ring.offer(record)) {
+			if ((overflow == OverflowPolicy.DROP) || !writer.isAlive()) {
+				dropped.incrementAndGet();
+				TOTAL_DROPPED.increment();
+				return;
+			}
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, CALLER_WAIT_NANOS);
+		}
+		accepted.incrementAndGet();
+	}
+
+	/**
+	 * Wait until every record published so far has been written and flushed, or
+	 * the writer has stopped.
+	 */
+	@Override
+	public void flush() {
+		long target = accepted.get();
+		while (writer.isAlive() && (written < target)) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, CALLER_WAIT_NANOS);
+		}
+	}
+
+	/**
+	 * Stop the writer once it has written everything, then close the handlers.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Handler target : targets) {
+			target.close();
+		}
+	}
+
+	/**
+	 * Return the handlers which actually write the records.
+	 *
+	 * @return The real handlers.
+	 */
+	Handler[] getTargets() {
+		return targets.clone();
+	}
+
+	/**
+	 * Return the number of records dropped because the ring buffer was full and
+	 * not yet reported.
+	 *
+	 * @return Number of records dropped.
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Return the number of records dropped by every asynchronous handler since the
+	 * server started, whether reported yet or not.
+	 *
+	 * @return Number of records dropped.
+	 */
+	static long getTotalDropped() {
+		return TOTAL_DROPPED.sum();
+	}
+
+	/**
+	 * Body of the writer thread: write the records in batches until told to stop,
+	 * then write whatever is left.
+	 */
+	private void writeRecords() {
+		List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+		boolean stopping;
+		boolean more;
+		do {
+			// Look before draining, so nothing published before close is missed
+			stopping = !running;
+			batch.clear();
+			more = ring.drainTo(batch, BATCH_SIZE) > 0;
+			if (more) {
+				for (LogRecord record : batch) {
+					write(record);
+				}
+				reportDropped();
+				for (Handler target : targets) {
+					target.flush();
+				}
+				written += batch.size();
+			} else if (!stopping) {
+				LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+			}
+		} while (!stopping || more);
+	}
+
+	/**
+	 * Log a warning saying how many records were dropped, if any were.
+	 */
+	private void reportDropped() {
+		long count = dropped.getAndSet(0);
+		if (count > 0) {
+			LogRecord warning = new LogRecord(Level.WARNING, count + " log records were dropped.");
+			warning.setSourceClassName(AsyncLogHandler.class.getName());
+			warning.setSourceMethodName("writeRecords");
+			write(warning);
+		}
+	}
+
+	/**
+	 * Hand a record to every real handler.
+	 *
+	 * @param record Record to be written.
+	 */
+	private void write(LogRecord record) {
+		for (Handler target : targets) {
+			target.publish(record);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package edu.northeastern.ccs.im;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers shared by all of the network connections for reading.
+ * A connection only borrows a buffer while it is reading or is holding the
+ * start of a message whose end has not arrived yet, so an idle client costs no
+ * buffer at all and the memory used depends on how many clients are busy
+ * rather than on how many are connected. Reading into a direct buffer also
+ * saves NIO from copying the data through a temporary one.
+ *
+ * Buffers are handed out most recently returned first, so the ones in use stay
+ * warm in the cache. Once the pool holds its limit of idle buffers, any more
+ * returned are left to the garbage collector.
+ *
+ * Direct buffers live outside the heap, where they count against
+ * -XX:MaxDirectMemorySize rather than -Xmx, and a connection holding even one
+ * byte of an unfinished message keeps a whole buffer. So that many slow
+ * senders cannot use up the direct memory, the pool keeps no more than its
+ * limit of direct buffers alive; past that it lends heap buffers, which are
+ * dropped rather than kept once returned.
+ *
+ * @version 1.0
+ */
+public final class BufferPool {
+
+	/** Name of the property setting how many idle buffers the shared pool keeps. */
+	private static final String IDLE_PROPERTY = "prattle.buffer.pool";
+
+	/** Number of idle buffers the shared pool keeps unless the property says otherwise. */
+	private static final int DEFAULT_IDLE = 256;
+
+	/** Name of the property setting how many direct buffers the shared pool keeps alive. */
+	private static final String DIRECT_PROPERTY = "prattle.buffer.direct";
+
+	/** Number of direct buffers the shared pool keeps alive unless the property says otherwise. */
+	private static final int DEFAULT_DIRECT = 1024;
+
+	/** Size of each buffer in bytes. */
+	private final int bufferSize;
+
+	/** Most idle buffers kept for reuse. */
+	private final int maxIdle;
+
+	/** Most direct buffers, borrowed or idle, alive at once. */
+	private final int maxDirect;
+
+	/** Buffers waiting to be borrowed. */
+	private final Deque<ByteBuffer> idle;
+
+	/** Number of buffers in the idle deque. */
+	private final AtomicInteger idleCount;
+
+	/** Number of buffers borrowed and not yet returned. */
+	private final AtomicInteger borrowed;
+
+	/** Number of direct buffers borrowed or idle. */
+	private final AtomicInteger direct;
+
+	/** Whether running short of direct buffers has been logged yet. */
+	private volatile boolean warned;
+
+	/**
+	 * Create a new, empty pool with no limit on its direct buffers.
+	 *
+	 * @param size  Size of each buffer in bytes.
+	 * @param limit Most idle buffers kept for reuse.
+	 */
+	public BufferPool(int size, int limit) {
+		this(size, limit, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a new, empty pool.
+	 *
+	 * @param size        Size of each buffer in bytes.
+	 * @param limit       Most idle buffers kept for reuse.
+	 * @param directLimit Most direct buffers alive at once; heap buffers are lent
+	 *                    beyond it.
+	 */
+	public BufferPool(int size, int limit, int directLimit) {
+		bufferSize = size;
+		maxIdle = limit;
+		maxDirect = directLimit;
+		idle = new ConcurrentLinkedDeque<>();
+		idleCount = new AtomicInteger();
+		borrowed = new AtomicInteger();
+		direct = new AtomicInteger();
+	}
+
+	/**
+	 * Return the pool shared by all network connections. It is created the first
+	 * time it is needed with buffers as large as the biggest message a connection
+	 * accepts, keeping up to 256 idle ones and 1024 direct ones in all unless the
+	 * prattle.buffer.pool and prattle.buffer.direct properties say otherwise.
+	 *
+	 * @return The shared buffer pool.
+	 */
+	public static BufferPool getDefault() {
+		return DefaultHolder.POOL;
+	}
+
+	/**
+	 * Borrow an empty buffer, allocating a new one if none is idle. The buffer is
+	 * a direct one unless the pool already has its limit of those alive.
+	 *
+	 * @return Buffer ready to be read into.
+	 */
+	ByteBuffer acquire() {
+		borrowed.incrementAndGet();
+		ByteBuffer result = idle.pollFirst();
+		if (result != null) {
+			idleCount.decrementAndGet();
+		} else if (direct.incrementAndGet() <= maxDirect) {
+			result = ByteBuffer.allocateDirect(bufferSize);
+		} else {
+			direct.decrementAndGet();
+			if (!warned) {
+				warned = true;
+				ChatLogger.warning("All " + maxDirect + " direct read buffers are in use; lending heap buffers.");
+			}
+			result = ByteBuffer.allocate(bufferSize);
+		}
+		return result;
+	}
+
+	/**
+	 * Return a borrowed buffer. The caller must not touch it afterwards.
+	 *
+	 * @param buffer Buffer which is no longer needed.
+	 */
+	void release(ByteBuffer buffer) {
+		borrowed.decrementAndGet();
+		buffer.clear();
+		if (!buffer.isDirect()) {
+			// Only lent while short of direct buffers, so it is not kept
+			return;
+		}
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.offerFirst(buffer);
+		} else {
+			// Enough are idle already; let the collector free this one
+			idleCount.decrementAndGet();
+			direct.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Return the number of buffers borrowed and not yet returned.
+	 *
+	 * @return Number of buffers in use.
+	 */
+	public int getBorrowed() {
+		return borrowed.get();
+	}
+
+	/**
+	 * Return the number of idle buffers waiting to be borrowed.
+	 *
+	 * @return Number of idle buffers.
+	 */
+	public int getIdle() {
+		return idleCount.get();
+	}
+
+	/**
+	 * Lazily creates the pool shared by all network connections.
+	 */
+	private static final class DefaultHolder {
+		/** The shared pool. */
+		private static final BufferPool POOL = new BufferPool(NetworkConnection.BUFFER_SIZE,
+				Integer.getInteger(IDLE_PROPERTY, DEFAULT_IDLE), Integer.getInteger(DIRECT_PROPERTY, DEFAULT_DIRECT));
+	}
+}
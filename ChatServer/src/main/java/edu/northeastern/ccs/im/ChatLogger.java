@@ -1,11 +1,14 @@
 package edu.northeastern.ccs.im;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
@@ -24,12 +27,25 @@ public class ChatLogger {
   private static final String DIR = System.getProperty("user.dir");
   /** The path for the directory. */
   private static final String PATH = String.format("%s/%s.log", DIR, LOGNAME);
+  /** Name of the property which turns on asynchronous logging. */
+  private static final String ASYNC_PROPERTY = "chatlogger.async";
+  /** Number of records the asynchronous ring buffer holds. */
+  private static final int ASYNC_CAPACITY = Integer.getInteger("chatlogger.async.capacity", 8192);
+  /** Whether a full ring buffer makes callers wait instead of dropping records. */
+  private static final boolean ASYNC_BLOCK = "block".equalsIgnoreCase(System.getProperty("chatlogger.async.overflow"));
+
+  /** Prefix of the properties setting the level of each category. */
+  private static final String LEVEL_PROPERTY = "chatlogger.level.";
+
+  /** Handler writing records on its own thread; null while logging synchronously. */
+  private static AsyncLogHandler asyncHandler;
 
   /**
    * Static initializations for this class.
    */
   static {
     setMode(HandlerType.BOTH);
+    setAsync(Boolean.getBoolean(ASYNC_PROPERTY));
   }
   
   /**
@@ -66,6 +82,110 @@ public class ChatLogger {
     write(Level.INFO, msg);
   }
 
+  /**
+   * Returns whether a message of the given level in the given category would be
+   * logged. Callers which have to do real work before logging can check this
+   * first.
+   * 
+   * @param category the category of the message
+   * @param lvl      the level of severity of the message
+   * @return true if the message would be logged, false otherwise
+   */
+  public static boolean isEnabled(Category category, Level lvl) {
+    return lvl.intValue() >= category.threshold;
+  }
+
+  /**
+   * Sets the lowest level of message logged in a category.
+   * 
+   * @param category the category whose level is set
+   * @param lvl      the lowest level logged; Level.OFF turns the category off
+   */
+  public static void setLevel(Category category, Level lvl) {
+    category.threshold = lvl.intValue();
+  }
+
+  /**
+   * Logs a debugging message.
+   * 
+   * @param category the category of the message
+   * @param msg      message to be logged
+   */
+  public static void debug(Category category, String msg) {
+    if (isEnabled(category, Level.FINE)) {
+      write(Level.FINE, msg, null);
+    }
+  }
+
+  /**
+   * Logs a debugging message built from a pattern. The message is only
+   * formatted when it is written, and not at all if debugging is off.
+   * 
+   * @param category the category of the message
+   * @param pattern  message to be logged, with {0} standing for the argument
+   * @param arg      argument of the message
+   */
+  public static void debug(Category category, String pattern, Object arg) {
+    if (isEnabled(category, Level.FINE)) {
+      write(Level.FINE, pattern, new Object[] { arg });
+    }
+  }
+
+  /**
+   * Logs a debugging message built by a supplier, which is only called if
+   * debugging is on.
+   * 
+   * @param category the category of the message
+   * @param msg      supplier of the message to be logged
+   */
+  public static void debug(Category category, Supplier<String> msg) {
+    if (isEnabled(category, Level.FINE)) {
+      write(Level.FINE, msg.get(), null);
+    }
+  }
+
+  /**
+   * Logs a general message built from a pattern. The message is only formatted
+   * when it is written, and not at all if the category is turned off.
+   * 
+   * @param category the category of the message
+   * @param pattern  message to be logged, with {0} standing for the argument
+   * @param arg      argument of the message
+   */
+  public static void info(Category category, String pattern, Object arg) {
+    if (isEnabled(category, Level.INFO)) {
+      write(Level.INFO, pattern, new Object[] { arg });
+    }
+  }
+
+  /**
+   * Logs a general message built from a pattern with two arguments.
+   * 
+   * @param category the category of the message
+   * @param pattern  message to be logged, with {0} and {1} standing for the
+   *                 arguments
+   * @param arg0     first argument of the message
+   * @param arg1     second argument of the message
+   */
+  public static void info(Category category, String pattern, Object arg0, Object arg1) {
+    if (isEnabled(category, Level.INFO)) {
+      write(Level.INFO, pattern, new Object[] { arg0, arg1 });
+    }
+  }
+
+  /**
+   * Logs a general message built by a supplier, which is only called if the
+   * category is logging general messages.
+   * 
+   * @param category the category of the message
+   * @param msg      supplier of the message to be logged
+   */
+  public static void info(Category category, Supplier<String> msg) {
+    if (isEnabled(category, Level.INFO)) {
+      write(Level.INFO, msg.get(), null);
+    }
+  }
+
   /**
    * Toggles between the handler types.
    * 
@@ -90,6 +210,47 @@ public class ChatLogger {
     LOGGER.setUseParentHandlers(false);
   }
 
+  /**
+   * Switches between writing log records on the calling thread and handing them
+   * to a dedicated writer thread. In asynchronous mode a log call only pushes the
+   * record into a bounded ring buffer; the writer formats and writes the records
+   * in batches. When the buffer is full, records are dropped and counted unless
+   * the chatlogger.async.overflow property is set to block.
+   * 
+   * @param async true to write records on the writer thread, false to write them
+   *              on the calling thread
+   */
+  public static synchronized void setAsync(boolean async) {
+    if (async && (asyncHandler == null)) {
+      Handler[] handlers = LOGGER.getHandlers();
+      for (Handler handler : handlers) {
+        LOGGER.removeHandler(handler);
+      }
+      asyncHandler = new AsyncLogHandler(handlers, ASYNC_CAPACITY,
+          ASYNC_BLOCK ? AsyncLogHandler.OverflowPolicy.BLOCK : AsyncLogHandler.OverflowPolicy.DROP);
+      LOGGER.addHandler(asyncHandler);
+      // Write out whatever is still in the buffer when the server stops.
+      Runtime.getRuntime().addShutdownHook(new Thread(asyncHandler::flush));
+    } else if (!async && (asyncHandler != null)) {
+      asyncHandler.flush();
+      LOGGER.removeHandler(asyncHandler);
+      for (Handler handler : asyncHandler.getTargets()) {
+        LOGGER.addHandler(handler);
+      }
+      asyncHandler = null;
+    }
+  }
+
+  /**
+   * Returns the number of records asynchronous logging has dropped because its
+   * ring buffer was full, since the server started.
+   * 
+   * @return the number of records dropped
+   */
+  public static long getDroppedRecords() {
+    return AsyncLogHandler.getTotalDropped();
+  }
+
   /**
    * Writes to the logger.
    * 
@@ -98,9 +259,27 @@ public class ChatLogger {
    * @return true if the message was logged, false otherwise
    */
   private static final boolean write(Level lvl, String msg) {
+    return write(lvl, msg, null);
+  }
+
+  /**
+   * Writes to the logger, leaving the formatting of the message to the handler.
+   * 
+   * @param lvl    the level of severity of the message being logged
+   * @param msg    the message being logged, or its pattern
+   * @param params the arguments of the pattern; null if msg is the message
+   * @return true if the message was logged, false otherwise
+   */
+  private static final boolean write(Level lvl, String msg, Object[] params) {
     boolean done = true;
     try {
-      LOGGER.log(lvl, msg);
+      LogRecord record = new LogRecord(lvl, msg);
+      record.setParameters(params);
+      // Name the source ourselves so that nobody has to walk the stack to find it.
+      record.setSourceClassName(LOGNAME);
+      record.setSourceMethodName("write");
+      record.setLoggerName(LOGNAME);
+      LOGGER.log(record);
     } catch (SecurityException ex) {
       done = false;
     }
@@ -141,6 +320,42 @@ public class ChatLogger {
     switchToConsole();
   }
 
+  /**
+   * Parts of the system whose messages can be turned up or down separately.
+   * Each category logs general messages and above unless the property
+   * chatlogger.level.&lt;category&gt; names another level, e.g.
+   * chatlogger.level.client=FINE. A property naming no level is reported and
+   * otherwise ignored, so a typo cannot stop the server from starting.
+   */
+  public enum Category {
+    /** Messages about the server as a whole. */
+    SERVER,
+    /** Messages about a single client's session. */
+    CLIENT,
+    /** Messages about reading and writing the network. */
+    NETWORK;
+
+    /** Value of the lowest level logged in this category. */
+    private volatile int threshold;
+
+    /**
+     * Creates the category at the level named by its property.
+     */
+    Category() {
+      String property = LEVEL_PROPERTY + name().toLowerCase(Locale.ROOT);
+      String name = System.getProperty(property);
+      Level lvl = Level.INFO;
+      if (name != null) {
+        try {
+          lvl = Level.parse(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+          warning("Ignoring " + property + "=" + name + ", which is not a level; logging at INFO.");
+        }
+      }
+      threshold = lvl.intValue();
+    }
+  }
+
   /**
    * Private Enum class for Handler Types.
    */
@@ -0,0 +1,383 @@
+package edu.northeastern.ccs.im;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Incremental parser for the messages sent by our IM clients. Each message is
+ * a three letter handle followed by two arguments, each written as its length
+ * and its bytes, e.g. &quot;BCT 5 alice 11 hello world&quot;. Messages which
+ * are addressed to somebody have the recipient as a third argument between the
+ * sender and the text. Messages in the binary framing described in WireFormat
+ * are recognised by their first byte and parsed as well, so a connection can
+ * switch framing after its HELLO.
+ *
+ * The parser works directly on the bytes in the connection's buffer and never
+ * decodes them into characters. A message does not have to arrive in one
+ * piece: when the buffer ends partway through a message, the parser remembers
+ * how far it got and carries on from there once more data has been read. The
+ * only allocation is the copy of each complete message handed to the Message
+ * it becomes; its fields are not turned into Strings until somebody asks.
+ *
+ * Compressed messages are inflated with a single Inflater, created the first
+ * time one arrives and reset between messages. Its native memory is only freed
+ * once the parser is closed.
+ *
+ * @version 1.0
+ */
+final class FrameParser {
+
+	/** The length of the message handle. */
+	private static final int HANDLE_LENGTH = 3;
+
+	/** The largest number of arguments following the handle. */
+	private static final int MAX_ARGUMENTS = 3;
+
+	/** The base for number conversions. */
+	private static final int DECIMAL_RADIX = 10;
+
+	/** Bits set in the first byte of a binary frame, and never in a text one. */
+	private static final int BINARY_MASK = WireFormat.BINARY_MARKER;
+
+	/** Waiting for the handle at the start of a message. */
+	private static final int STATE_HANDLE = 0;
+
+	/** Waiting for the space in front of an argument's length. */
+	private static final int STATE_SEPARATOR = 1;
+
+	/** Reading the digits of an argument's length. */
+	private static final int STATE_LENGTH = 2;
+
+	/** Waiting for all of an argument's bytes to arrive. */
+	private static final int STATE_ARGUMENT = 3;
+
+	/** Which part of the message we are waiting for. */
+	private int state;
+
+	/** Offset from the start of the message of the next byte to look at. */
+	private int scan;
+
+	/** Handle of the message being parsed. */
+	private MessageType type;
+
+	/** Index of the argument being parsed. */
+	private int argument;
+
+	/** Length of the current argument read so far. */
+	private int length;
+
+	/** Number of digits of the current argument's length read so far. */
+	private int digits;
+
+	/** Offset of each argument from the start of the message. */
+	private final int[] starts;
+
+	/** Length in bytes of each argument. */
+	private final int[] lengths;
+
+	/** Whether the client sent something that is not a message. */
+	private boolean malformed;
+
+	/** Largest message, in bytes, this parser accepts. */
+	private final int maxFrame;
+
+	/** Inflater for compressed messages; null until the first one arrives. */
+	private Inflater inflater;
+
+	/**
+	 * Create a parser waiting for the start of a message, accepting messages as
+	 * large as a connection's read buffer.
+	 */
+	FrameParser() {
+		this(NetworkConnection.BUFFER_SIZE);
+	}
+
+	/**
+	 * Create a parser waiting for the start of a message. The buffers handed to
+	 * it may be smaller than the largest message, as long as a message which does
+	 * not fit is moved to a larger one before more is read.
+	 *
+	 * @param limit Largest message, in bytes, to accept.
+	 */
+	FrameParser(int limit) {
+		maxFrame = limit;
+		starts = new int[MAX_ARGUMENTS];
+		lengths = new int[MAX_ARGUMENTS];
+		state = STATE_HANDLE;
+	}
+
+	/**
+	 * Parse the next message out of the buffer. The buffer must be ready for
+	 * reading, with its position at the first byte not yet handed to this parser
+	 * as part of a complete message. When a message is returned, the position is
+	 * moved past it; otherwise the position is left at the start of the partial
+	 * message, so that compacting the buffer keeps it for the next call.
+	 *
+	 * @param buff Buffer holding the bytes read from the network.
+	 * @return The next complete message, or null if the buffer does not hold one.
+	 */
+	Message next(ByteBuffer buff) {
+		if (malformed) {
+			return null;
+		}
+		if ((state == STATE_HANDLE) && (scan == 0)) {
+			skipWhitespace(buff);
+		}
+		int start = buff.position();
+		int limit = buff.limit();
+		while (true) {
+			int index = start + scan;
+			switch (state) {
+			case STATE_HANDLE:
+				if ((index < limit) && ((buff.get(index) & BINARY_MASK) == BINARY_MASK)) {
+					return nextBinary(buff, index);
+				}
+				if (index + HANDLE_LENGTH > limit) {
+					return null;
+				}
+				type = MessageType.fromWire(buff, index);
+				if (type == null) {
+					return fail();
+				}
+				scan += HANDLE_LENGTH;
+				argument = 0;
+				state = STATE_SEPARATOR;
+				break;
+			case STATE_SEPARATOR:
+				if (index >= limit) {
+					return null;
+				}
+				if (buff.get(index) != ' ') {
+					return fail();
+				}
+				scan += 1;
+				length = 0;
+				digits = 0;
+				state = STATE_LENGTH;
+				break;
+			case STATE_LENGTH:
+				if (index >= limit) {
+					return null;
+				}
+				byte b = buff.get(index);
+				if ((b == ' ') && (digits > 0)) {
+					scan += 1;
+					// A message larger than any buffer will never be complete
+					if (scan + length > maxFrame) {
+						return fail();
+					}
+					starts[argument] = scan;
+					lengths[argument] = length;
+					state = STATE_ARGUMENT;
+				} else if ((b >= '0') && (b <= '9') && (length <= maxFrame)) {
+					// My quick-and-dirty numeric converter
+					length = (length * DECIMAL_RADIX) + (b - '0');
+					digits += 1;
+					scan += 1;
+				} else {
+					return fail();
+				}
+				break;
+			case STATE_ARGUMENT:
+				if (index + lengths[argument] > limit) {
+					return null;
+				}
+				scan += lengths[argument];
+				argument += 1;
+				if (argument == type.getArgumentCount()) {
+					return complete(buff, WireFormat.TEXT);
+				}
+				state = STATE_SEPARATOR;
+				break;
+			default:
+				throw new IllegalStateException("Invalid parser state.");
+			}
+		}
+	}
+
+	/**
+	 * Parse a message in the binary framing. Its lengths are at fixed offsets, so
+	 * nothing needs remembering between calls: until the whole message has
+	 * arrived, the buffer is simply left alone.
+	 *
+	 * @param buff  Buffer holding the bytes read from the network.
+	 * @param start Index of the first byte of the message.
+	 * @return The message, or null if it is not complete or is not a message.
+	 */
+	private Message nextBinary(ByteBuffer buff, int start) {
+		if (!WireFormat.isBinaryMarker(buff.get(start))) {
+			return fail();
+		}
+		if (start + WireFormat.BINARY_PREFIX > buff.limit()) {
+			return null;
+		}
+		MessageType handle = MessageType.fromCode(buff.get(start + 1));
+		if (handle == null) {
+			return fail();
+		}
+		int count = handle.getArgumentCount();
+		int offset = WireFormat.BINARY_PREFIX + (count * Integer.BYTES);
+		if (start + offset > buff.limit()) {
+			return null;
+		}
+		for (int i = 0; i < count; i++) {
+			int size = buff.getInt(start + WireFormat.BINARY_PREFIX + (i * Integer.BYTES));
+			// A message larger than any buffer will never be complete
+			if ((size < -1) || ((long) offset + size > maxFrame)) {
+				return fail();
+			}
+			starts[i] = offset;
+			lengths[i] = Math.max(0, size);
+			offset += lengths[i];
+		}
+		if ((buff.get(start) & WireFormat.VERSION_MASK) == WireFormat.DEFLATE_VERSION) {
+			return nextDeflated(buff, start, handle, offset);
+		}
+		if (start + offset > buff.limit()) {
+			return null;
+		}
+		type = handle;
+		scan = offset;
+		return complete(buff, WireFormat.BINARY);
+	}
+
+	/**
+	 * Parse a compressed binary message, whose lengths have already been read,
+	 * and inflate it into the ordinary binary frame it stands for. That frame is
+	 * never larger than the largest message accepted, so nothing a client sends
+	 * can inflate into more than it could have sent uncompressed.
+	 *
+	 * @param buff   Buffer holding the bytes read from the network.
+	 * @param start  Index of the first byte of the message.
+	 * @param handle Type of the message.
+	 * @param size   Length of the message once inflated.
+	 * @return The message, or null if it is not complete or is not a message.
+	 */
+	private Message nextDeflated(ByteBuffer buff, int start, MessageType handle, int size) {
+		int header = WireFormat.BINARY_PREFIX + (handle.getArgumentCount() * Integer.BYTES);
+		if (start + header + Integer.BYTES > buff.limit()) {
+			return null;
+		}
+		int packed = buff.getInt(start + header);
+		if ((packed < 0) || ((long) header + Integer.BYTES + packed > maxFrame)) {
+			return fail();
+		}
+		if (start + header + Integer.BYTES + packed > buff.limit()) {
+			return null;
+		}
+		byte[] input = new byte[packed];
+		buff.position(start + header + Integer.BYTES);
+		buff.get(input);
+		// One byte of room to spare shows up arguments longer than their lengths say
+		byte[] output = new byte[size - header + 1];
+		int inflated = 0;
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		try {
+			inflater.setInput(input);
+			while (!inflater.finished() && (inflated < output.length)) {
+				int count = inflater.inflate(output, inflated, output.length - inflated);
+				if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (!inflater.finished() || (inflated != size - header)) {
+				return fail();
+			}
+		} catch (DataFormatException e) {
+			return fail();
+		} finally {
+			inflater.reset();
+		}
+		byte[] frame = new byte[size];
+		buff.position(start);
+		buff.get(frame, 0, header);
+		frame[0] = (byte) (WireFormat.BINARY_MARKER | WireFormat.PLAIN_VERSION);
+		System.arraycopy(output, 0, frame, header, inflated);
+		buff.position(start + header + Integer.BYTES + packed);
+		type = handle;
+		return complete(frame, WireFormat.DEFLATE);
+	}
+
+	/**
+	 * Return whether the client has sent something which is not a message. Once
+	 * this happens, the parser cannot find the start of the next message and will
+	 * not return any more.
+	 *
+	 * @return True if the input was malformed; false otherwise.
+	 */
+	boolean isMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * Free the memory held for inflating compressed messages. The parser must not
+	 * be used afterwards.
+	 */
+	void close() {
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	/**
+	 * Skip any line breaks or spaces which clients leave between messages.
+	 *
+	 * @param buff Buffer positioned at the start of the next message.
+	 */
+	private static void skipWhitespace(ByteBuffer buff) {
+		int pos = buff.position();
+		while (pos < buff.limit()) {
+			byte b = buff.get(pos);
+			if ((b != ' ') && (b != '\r') && (b != '\n') && (b != '\t')) {
+				break;
+			}
+			pos += 1;
+		}
+		buff.position(pos);
+	}
+
+	/**
+	 * Copy the message which has just been completed out of the buffer and get
+	 * ready for the next one.
+	 *
+	 * @param buff   Buffer positioned at the start of the message.
+	 * @param format Framing the message is in.
+	 * @return The message which was parsed.
+	 */
+	private Message complete(ByteBuffer buff, WireFormat format) {
+		byte[] frame = new byte[scan];
+		buff.get(frame);
+		return complete(frame, format);
+	}
+
+	/**
+	 * Turn the bytes of the message which has just been completed into a Message
+	 * and get ready for the next one.
+	 *
+	 * @param frame  Bytes of the message.
+	 * @param format Framing the message was received in.
+	 * @return The message which was parsed.
+	 */
+	private Message complete(byte[] frame, WireFormat format) {
+		Message result = Message.makeMessage(type, frame, starts, lengths, format);
+		state = STATE_HANDLE;
+		scan = 0;
+		type = null;
+		return result;
+	}
+
+	/**
+	 * Record that the client sent something which is not a message.
+	 *
+	 * @return Always null, as no message can be parsed.
+	 */
+	private Message fail() {
+		malformed = true;
+		return null;
+	}
+}
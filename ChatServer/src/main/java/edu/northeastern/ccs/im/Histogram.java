@@ -0,0 +1,168 @@
+package edu.northeastern.ccs.im;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, such as latencies in nanoseconds, in the
+ * style of an HDR histogram: values are counted in buckets which are linear
+ * within each power of two, so every value is known to within 1/64 of itself
+ * (about 1.6%) however large it is, using a fixed number of buckets.
+ *
+ * Recording a value finds its bucket with a few shifts and adds to a striped
+ * counter, so it never allocates once the counters have warmed up and many
+ * threads can record at the same time without contending. Reading the
+ * percentiles while values are being recorded sees a consistent-enough
+ * snapshot for monitoring.
+ *
+ * @version 1.0
+ */
+public final class Histogram {
+
+	/** Number of bits of each value that are kept exactly. */
+	private static final int SUB_BUCKET_BITS = 7;
+
+	/** Number of buckets in each power of two past the first. */
+	private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+
+	/** Largest power of two held; larger values are counted as this one. */
+	private static final int MAX_SHIFT = 40;
+
+	/** Largest value which can be told apart from larger ones. */
+	private static final long MAX_VALUE = (1L << (MAX_SHIFT + SUB_BUCKET_BITS)) - 1;
+
+	/** Number of values counted in each bucket. */
+	private final LongAdder[] buckets;
+
+	/** Sum of all of the values recorded. */
+	private final LongAdder sum;
+
+	/** Largest value recorded. */
+	private final AtomicLong max;
+
+	/**
+	 * Create an empty histogram.
+	 */
+	public Histogram() {
+		buckets = new LongAdder[index(MAX_VALUE) + 1];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Count a value. Negative values are counted as zero.
+	 *
+	 * @param value Value to be counted.
+	 */
+	public void record(long value) {
+		long v = Math.max(0, value);
+		buckets[index(Math.min(v, MAX_VALUE))].increment();
+		sum.add(v);
+		// Only write the maximum when it changes, so most calls just read it
+		long seen = max.get();
+		while ((v > seen) && !max.compareAndSet(seen, v)) {
+			seen = max.get();
+		}
+	}
+
+	/**
+	 * Return the number of values recorded.
+	 *
+	 * @return Number of values.
+	 */
+	public long getCount() {
+		long result = 0;
+		for (LongAdder bucket : buckets) {
+			result += bucket.sum();
+		}
+		return result;
+	}
+
+	/**
+	 * Return the mean of the values recorded.
+	 *
+	 * @return The mean, or 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return (count == 0) ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Return the largest value recorded.
+	 *
+	 * @return The largest value, or 0 if nothing was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Return the value below which the given percentage of the values fall.
+	 *
+	 * @param percentile Percentage of the values, from 0 to 100.
+	 * @return The highest value in the bucket holding that percentile, or 0 if
+	 *         nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= wanted) {
+				return Math.min(highestEquivalent(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forget every value recorded so far.
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Return the bucket counting the given value. Values below 128 each have their
+	 * own bucket; above that, each power of two is split into 64 buckets.
+	 *
+	 * @param value Value between 0 and MAX_VALUE.
+	 * @return Index of its bucket.
+	 */
+	private static int index(long value) {
+		int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift == 0) ? (int) value : (shift * HALF_SUB_BUCKETS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Return the largest value counted in the given bucket.
+	 *
+	 * @param index Index of the bucket.
+	 * @return Largest value in the bucket.
+	 */
+	private static long highestEquivalent(int index) {
+		if (index < 2 * HALF_SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index / HALF_SUB_BUCKETS) - 1;
+		long mantissa = index - ((long) shift * HALF_SUB_BUCKETS);
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
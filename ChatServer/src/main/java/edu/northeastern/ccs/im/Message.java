@@ -1,5 +1,11 @@
 package edu.northeastern.ccs.im;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
 /**
  * Each instance of this class represents a single transmission by our IM
  * clients.
@@ -17,6 +23,15 @@ public class Message {
 	/** The string sent when a field is null. */
 	private static final String NULL_OUTPUT = "--";
 
+	/** The character set used to send messages over the network as text. */
+	private static final Charset CHARSET = StandardCharsets.US_ASCII;
+
+	/** Length written in a binary frame for a missing argument. */
+	private static final int MISSING = -1;
+
+	/** Room left for the deflater beyond the size of the uncompressed frame. */
+	private static final int DEFLATE_SLACK = 64;
+
 	/** The handle of the message. */
 	private MessageType msgType;
 
@@ -25,9 +40,64 @@ public class Message {
 	 */
 	private String msgSender;
 
+	/**
+	 * The name of the user or group this message is addressed to, for messages
+	 * that are not sent to everyone.
+	 */
+	private String msgRecipient;
+
 	/** The second argument used in the message. */
 	private String msgText;
 
+	/**
+	 * The bytes this message was received as, or null if it was created on the
+	 * server. The sender and text are only decoded from them when first needed.
+	 */
+	private final byte[] wire;
+
+	/** Offset of the sender's name within the received bytes. */
+	private final int senderStart;
+
+	/** Length of the sender's name within the received bytes. */
+	private final int senderLength;
+
+	/** Offset of the recipient's name within the received bytes. */
+	private final int recipientStart;
+
+	/** Length of the recipient's name within the received bytes. */
+	private final int recipientLength;
+
+	/** Offset of the text within the received bytes. */
+	private final int textStart;
+
+	/** Length of the text within the received bytes. */
+	private final int textLength;
+
+	/** Framing the message was received in; text for messages created here. */
+	private final WireFormat wireFormat;
+
+	/** Whether the sender and text have been decoded from the received bytes. */
+	private volatile boolean decoded;
+
+	/**
+	 * The bytes sent over the network for this message. These are only created when
+	 * first needed and are then shared by every client the message is sent to.
+	 */
+	private volatile ByteBuffer encoded;
+
+	/**
+	 * The bytes sent over the network for this message to clients speaking the
+	 * binary framing, likewise created when first needed and then shared.
+	 */
+	private volatile ByteBuffer binary;
+
+	/**
+	 * The bytes sent to clients speaking the compressed framing. Compressing is
+	 * far dearer than encoding, so it is only ever done once per message, under
+	 * this message's lock; once done, it is read without the lock.
+	 */
+	private volatile ByteBuffer deflated;
+
 	/**
 	 * Create a new message that contains actual IM text. The type of distribution
 	 * is defined by the handle and we must also set the name of the message sender,
@@ -35,15 +105,76 @@ public class Message {
 	 * 
 	 * @param handle  Handle for the type of message being created.
 	 * @param srcName Name of the individual sending this message
+	 * @param dstName Name of the user or group the message is addressed to (may be
+	 *                null)
 	 * @param text    Text of the instant message
 	 */
-	private Message(MessageType handle, String srcName, String text) {
+	private Message(MessageType handle, String srcName, String dstName, String text) {
 		msgType = handle;
 		// Save the properly formatted identifier for the user sending the
 		// message.
 		msgSender = srcName;
+		// Save who the message is for.
+		msgRecipient = dstName;
 		// Save the text of the message.
 		msgText = text;
+		// There is nothing to decode.
+		wire = null;
+		wireFormat = WireFormat.TEXT;
+		senderStart = 0;
+		senderLength = 0;
+		recipientStart = 0;
+		recipientLength = 0;
+		textStart = 0;
+		textLength = 0;
+		decoded = true;
+	}
+
+	/**
+	 * Create a new message that contains actual IM text for everyone.
+	 * 
+	 * @param handle  Handle for the type of message being created.
+	 * @param srcName Name of the individual sending this message
+	 * @param text    Text of the instant message
+	 */
+	private Message(MessageType handle, String srcName, String text) {
+		this(handle, srcName, null, text);
+	}
+
+	/**
+	 * Create a new message from the bytes it was received as. The names and the
+	 * text are left in those bytes until somebody asks for them. The starts and
+	 * lengths hold the sender, then the recipient if the handle has one, then the
+	 * text; a length of zero means the argument is missing.
+	 * 
+	 * @param handle  Handle for the type of message being created.
+	 * @param frame   Bytes of the complete message as received.
+	 * @param starts  Offset of each argument within the bytes.
+	 * @param lengths Length of each argument.
+	 * @param format  Framing the bytes are in.
+	 */
+	private Message(MessageType handle, byte[] frame, int[] starts, int[] lengths, WireFormat format) {
+		msgType = handle;
+		wire = frame;
+		wireFormat = format;
+		int text = handle.getArgumentCount() - 1;
+		senderStart = starts[0];
+		senderLength = lengths[0];
+		recipientStart = handle.hasRecipient() ? starts[1] : 0;
+		recipientLength = handle.hasRecipient() ? lengths[1] : 0;
+		textStart = starts[text];
+		// Hello and quit messages only keep the name of the sender
+		textLength = handle.hasText() ? lengths[text] : 0;
+		// Passing on a message can reuse the bytes it arrived as, when they say the
+		// same as encoding it again would.
+		if (format != WireFormat.TEXT) {
+			if (handle.hasText() || (lengths[text] == 0)) {
+				binary = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+			}
+		} else if (handle.hasText() && (senderLength > 0) && (textLength > 0)
+				&& (!handle.hasRecipient() || (recipientLength > 0))) {
+			encoded = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+		}
 	}
 
 	/**
@@ -69,6 +200,27 @@ public class Message {
 		return new Message(MessageType.QUIT, myName, null);
 	}
 
+	/**
+	 * Create a new message checking that the other end of the connection is still
+	 * there.
+	 * 
+	 * @param myName The name of the sender of the ping.
+	 * @return Instance of Message which should be answered with a pong.
+	 */
+	public static Message makePingMessage(String myName) {
+		return new Message(MessageType.PING, myName, null);
+	}
+
+	/**
+	 * Create a new message answering a ping.
+	 * 
+	 * @param myName The name of the sender of the pong.
+	 * @return Instance of Message showing the sender is still there.
+	 */
+	public static Message makePongMessage(String myName) {
+		return new Message(MessageType.PONG, myName, null);
+	}
+
 	/**
 	 * Create a new message broadcasting an announcement to the world.
 	 * 
@@ -109,10 +261,95 @@ public class Message {
 			result = makeSimpleLoginMessage(srcName);
 		} else if (handle.compareTo(MessageType.BROADCAST.toString()) == 0) {
 			result = makeBroadcastMessage(srcName, text);
+		} else if (handle.compareTo(MessageType.PING.toString()) == 0) {
+			result = makePingMessage(srcName);
+		} else if (handle.compareTo(MessageType.PONG.toString()) == 0) {
+			result = makePongMessage(srcName);
 		}
 		return result;
 	}
 
+	/**
+	 * Create a new message sent privately to a single user.
+	 * 
+	 * @param myName  Name of the sender of this message.
+	 * @param dstName Name of the only user who will receive the message.
+	 * @param text    Text of the message.
+	 * @return Instance of Message that transmits text to a single user.
+	 */
+	public static Message makeDirectMessage(String myName, String dstName, String text) {
+		return new Message(MessageType.DIRECT, myName, dstName, text);
+	}
+
+	/**
+	 * Create a new message asking to join a group.
+	 * 
+	 * @param myName Name of the user joining the group.
+	 * @param group  Name of the group to join.
+	 * @return Instance of Message that adds the user to the group.
+	 */
+	public static Message makeJoinGroupMessage(String myName, String group) {
+		return new Message(MessageType.JOIN_GROUP, myName, group);
+	}
+
+	/**
+	 * Create a new message asking to leave a group.
+	 * 
+	 * @param myName Name of the user leaving the group.
+	 * @param group  Name of the group to leave.
+	 * @return Instance of Message that removes the user from the group.
+	 */
+	public static Message makeLeaveGroupMessage(String myName, String group) {
+		return new Message(MessageType.LEAVE_GROUP, myName, group);
+	}
+
+	/**
+	 * Create a new message sent to the members of a group.
+	 * 
+	 * @param myName Name of the sender of this message.
+	 * @param group  Name of the group whose members will receive the message.
+	 * @param text   Text of the message.
+	 * @return Instance of Message that transmits text to the members of a group.
+	 */
+	public static Message makeGroupMessage(String myName, String group, String text) {
+		return new Message(MessageType.GROUP, myName, group, text);
+	}
+
+	/**
+	 * Create the message which was received from the network as the given bytes.
+	 * As with the other makeMessage, hello and quit messages keep only the name of
+	 * the sender and empty arguments are treated as missing.
+	 * 
+	 * @param handle  Handle of the message which was received.
+	 * @param frame   Bytes of the complete message.
+	 * @param starts  Offset of each argument within the bytes.
+	 * @param lengths Length of each argument.
+	 * @param format  Framing the bytes are in.
+	 * @return Instance of Message representing the bytes.
+	 */
+	static Message makeMessage(MessageType handle, byte[] frame, int[] starts, int[] lengths, WireFormat format) {
+		return new Message(handle, frame, starts, lengths, format);
+	}
+
+	/**
+	 * Recreate a message from the bytes it is sent over the network as, in either
+	 * framing, such as those kept in a journal. The bytes are copied, so the
+	 * buffer may be reused afterwards.
+	 * 
+	 * @param frame Buffer positioned at the start of the message's bytes and
+	 *              ending after them.
+	 * @return Instance of Message represented by the bytes, or null if they do not
+	 *         hold a complete message.
+	 */
+	public static Message fromEncoded(ByteBuffer frame) {
+		FrameParser parser = new FrameParser();
+		try {
+			return parser.next(frame);
+		} finally {
+			parser.close();
+		}
+	}
+
 	/**
 	 * Create a new message for the early stages when the user logs in without all
 	 * the special stuff.
@@ -130,18 +367,45 @@ public class Message {
 	 * @return String specifying the name of the message originator.
 	 */
 	public String getName() {
+		decodeFields();
 		return msgSender;
 	}
 
+	/**
+	 * Return the name of the user or group this message is addressed to.
+	 * 
+	 * @return Name of the recipient, or null if the message is for everyone.
+	 */
+	public String getRecipient() {
+		decodeFields();
+		return msgRecipient;
+	}
+
 	/**
 	 * Return the text of this message.
 	 * 
 	 * @return String equal to the text sent by this message.
 	 */
 	public String getText() {
+		decodeFields();
 		return msgText;
 	}
 
+	/**
+	 * Turn the sender and text of a received message into Strings, if this has not
+	 * happened yet.
+	 */
+	private void decodeFields() {
+		if (!decoded) {
+			Charset chars = wireFormat.getCharset();
+			msgSender = (senderLength > 0) ? new String(wire, senderStart, senderLength, chars) : null;
+			msgRecipient = (recipientLength > 0) ? new String(wire, recipientStart, recipientLength, chars)
+					: null;
+			msgText = (textLength > 0) ? new String(wire, textStart, textLength, chars) : null;
+			decoded = true;
+		}
+	}
+
 	/**
 	 * Determine if this message is broadcasting text to everyone.
 	 * 
@@ -151,6 +415,42 @@ public class Message {
 		return (msgType == MessageType.BROADCAST);
 	}
 
+	/**
+	 * Determine if this message is sent privately to a single user.
+	 * 
+	 * @return True if the message is a direct message; false otherwise.
+	 */
+	public boolean isDirectMessage() {
+		return (msgType == MessageType.DIRECT);
+	}
+
+	/**
+	 * Determine if this message is sent to the members of a group.
+	 * 
+	 * @return True if the message is a group message; false otherwise.
+	 */
+	public boolean isGroupMessage() {
+		return (msgType == MessageType.GROUP);
+	}
+
+	/**
+	 * Determine if this message asks to join a group.
+	 * 
+	 * @return True if the message joins a group; false otherwise.
+	 */
+	public boolean isJoinGroup() {
+		return (msgType == MessageType.JOIN_GROUP);
+	}
+
+	/**
+	 * Determine if this message asks to leave a group.
+	 * 
+	 * @return True if the message leaves a group; false otherwise.
+	 */
+	public boolean isLeaveGroup() {
+		return (msgType == MessageType.LEAVE_GROUP);
+	}
+
 	/**
 	 * Determine if this message is sent by a new client to log-in to the server.
 	 * 
@@ -160,6 +460,24 @@ public class Message {
 		return (msgType == MessageType.HELLO);
 	}
 
+	/**
+	 * Determine if this message checks that the other end is still there.
+	 * 
+	 * @return True if the message is a ping; false otherwise.
+	 */
+	public boolean isPing() {
+		return (msgType == MessageType.PING);
+	}
+
+	/**
+	 * Determine if this message answers a ping.
+	 * 
+	 * @return True if the message is a pong; false otherwise.
+	 */
+	public boolean isPong() {
+		return (msgType == MessageType.PONG);
+	}
+
 	/**
 	 * Determine if this message is a message signing off from the IM server.
 	 * 
@@ -169,21 +487,259 @@ public class Message {
 		return (msgType == MessageType.QUIT);
 	}
 
+	/**
+	 * Return the bytes that are sent over the network for this message. The message
+	 * is only encoded once; every call returns a new view onto the same read-only
+	 * bytes, so each caller can write it out independently of the others.
+	 * 
+	 * @return Read-only buffer positioned at the start of this message's bytes.
+	 */
+	public ByteBuffer getEncoded() {
+		return encode().duplicate();
+	}
+
+	/**
+	 * Return the number of bytes that are sent over the network for this message.
+	 * 
+	 * @return Length of this message's encoding in bytes.
+	 */
+	public int getEncodedLength() {
+		return encode().remaining();
+	}
+
+	/**
+	 * Return the bytes that are sent over the network for this message in the
+	 * given framing. Each framing is only encoded once and then shared, like
+	 * getEncoded.
+	 * 
+	 * @param format Framing wanted.
+	 * @return Read-only buffer positioned at the start of this message's bytes.
+	 */
+	public ByteBuffer getEncoded(WireFormat format) {
+		return encode(format).duplicate();
+	}
+
+	/**
+	 * Return the number of bytes that are sent over the network for this message
+	 * in the given framing.
+	 * 
+	 * @param format Framing wanted.
+	 * @return Length of this message's encoding in bytes.
+	 */
+	public int getEncodedLength(WireFormat format) {
+		return encode(format).remaining();
+	}
+
+	/**
+	 * Return the framing this message was received in.
+	 * 
+	 * @return Framing of the bytes received, or text if the message was created
+	 *         here.
+	 */
+	public WireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	/**
+	 * Return the shared encoding of this message, creating it if needed.
+	 * 
+	 * @return Read-only buffer holding this message's bytes.
+	 */
+	private ByteBuffer encode() {
+		ByteBuffer result = encoded;
+		if (result == null) {
+			decodeFields();
+			// Each length must count the bytes written, which is not the number of
+			// characters once a field holds something US-ASCII cannot show.
+			byte[][] fields = new byte[msgType.getArgumentCount()][];
+			fields[0] = ascii(msgSender);
+			if (msgType.hasRecipient()) {
+				fields[1] = ascii(msgRecipient);
+			}
+			fields[fields.length - 1] = ascii(msgText);
+			byte[] handle = msgType.toString().getBytes(CHARSET);
+			byte[][] lengths = new byte[fields.length][];
+			int size = handle.length;
+			for (int i = 0; i < fields.length; i++) {
+				lengths[i] = Integer.toString(fields[i].length).getBytes(CHARSET);
+				size += 2 + lengths[i].length + fields[i].length;
+			}
+			ByteBuffer frame = ByteBuffer.allocate(size);
+			frame.put(handle);
+			for (int i = 0; i < fields.length; i++) {
+				frame.put((byte) ' ').put(lengths[i]).put((byte) ' ').put(fields[i]);
+			}
+			frame.flip();
+			result = frame.asReadOnlyBuffer();
+			encoded = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the bytes of a field in the text framing.
+	 * 
+	 * @param field Field to be encoded (may be null)
+	 * @return The US-ASCII bytes of the field, or of the placeholder sent for a
+	 *         missing one.
+	 */
+	private static byte[] ascii(String field) {
+		return ((field != null) ? field : NULL_OUTPUT).getBytes(CHARSET);
+	}
+
+	/**
+	 * Return the shared encoding of this message in the given framing.
+	 * 
+	 * @param format Framing wanted.
+	 * @return Read-only buffer holding this message's bytes.
+	 */
+	private ByteBuffer encode(WireFormat format) {
+		switch (format) {
+		case BINARY:
+			return encodeBinary();
+		case DEFLATE:
+			return encodeDeflated();
+		default:
+			return encode();
+		}
+	}
+
+	/**
+	 * Return the shared binary encoding of this message, creating it if needed.
+	 * Each argument is written as its length in four bytes followed by its UTF-8
+	 * bytes, so nothing has to be formatted as decimal.
+	 * 
+	 * @return Read-only buffer holding this message's bytes.
+	 */
+	private ByteBuffer encodeBinary() {
+		ByteBuffer result = binary;
+		if (result == null) {
+			decodeFields();
+			byte[][] fields = new byte[msgType.getArgumentCount()][];
+			fields[0] = utf8(msgSender);
+			if (msgType.hasRecipient()) {
+				fields[1] = utf8(msgRecipient);
+			}
+			fields[fields.length - 1] = msgType.hasText() ? utf8(msgText) : null;
+			int size = WireFormat.BINARY_PREFIX + (fields.length * Integer.BYTES);
+			for (byte[] field : fields) {
+				size += (field == null) ? 0 : field.length;
+			}
+			ByteBuffer frame = ByteBuffer.allocate(size);
+			frame.put((byte) (WireFormat.BINARY_MARKER | WireFormat.PLAIN_VERSION));
+			frame.put((byte) msgType.getCode());
+			for (byte[] field : fields) {
+				frame.putInt((field == null) ? MISSING : field.length);
+			}
+			for (byte[] field : fields) {
+				if (field != null) {
+					frame.put(field);
+				}
+			}
+			frame.flip();
+			result = frame.asReadOnlyBuffer();
+			binary = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the shared compressed encoding of this message, creating it if
+	 * needed. The arguments of the binary encoding are deflated together behind
+	 * its lengths; messages too short to be worth it, and those which deflating
+	 * does not shrink, are sent as ordinary binary frames instead.
+	 * 
+	 * @return Read-only buffer holding this message's bytes.
+	 */
+	private ByteBuffer encodeDeflated() {
+		ByteBuffer result = deflated;
+		if (result == null) {
+			// Only lock while compressing, so racing recipients wait for one result
+			synchronized (this) {
+				result = deflated;
+				if (result == null) {
+					result = deflate();
+					deflated = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compress the binary encoding of this message, if that is worth doing.
+	 * 
+	 * @return Read-only buffer holding the compressed frame, or the binary
+	 *         encoding when it is not compressed.
+	 */
+	private ByteBuffer deflate() {
+		ByteBuffer plain = encodeBinary();
+		// Hello messages are always compressed to announce the framing
+		if ((plain.remaining() < WireFormat.COMPRESSION_THRESHOLD) && (msgType != MessageType.HELLO)) {
+			return plain;
+		}
+		ByteBuffer result = plain;
+		byte[] bytes = new byte[plain.remaining()];
+		plain.duplicate().get(bytes);
+		int header = WireFormat.BINARY_PREFIX + (msgType.getArgumentCount() * Integer.BYTES);
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(bytes, header, bytes.length - header);
+			deflater.finish();
+			byte[] frame = new byte[bytes.length + DEFLATE_SLACK];
+			System.arraycopy(bytes, 0, frame, 0, header);
+			frame[0] = (byte) (WireFormat.BINARY_MARKER | WireFormat.DEFLATE_VERSION);
+			int size = header + Integer.BYTES;
+			while (!deflater.finished()) {
+				if (size == frame.length) {
+					frame = Arrays.copyOf(frame, frame.length * 2);
+				}
+				size += deflater.deflate(frame, size, frame.length - size);
+			}
+			ByteBuffer.wrap(frame).putInt(header, size - header - Integer.BYTES);
+			if ((size < bytes.length) || (msgType == MessageType.HELLO)) {
+				result = ByteBuffer.wrap(frame, 0, size).asReadOnlyBuffer();
+			}
+		} finally {
+			deflater.end();
+		}
+		return result;
+	}
+
+	/**
+	 * Return the UTF-8 bytes of a field.
+	 * 
+	 * @param field Field to be encoded (may be null)
+	 * @return The bytes, or null if the field is missing.
+	 */
+	private static byte[] utf8(String field) {
+		return (field == null) ? null : field.getBytes(StandardCharsets.UTF_8);
+	}
+
 	/**
 	 * Representation of this message as a String. This begins with the message
 	 * handle and then contains the length (as an integer) and the value of the next
-	 * two arguments.
+	 * two arguments, or three for messages addressed to a recipient. The lengths
+	 * count characters; the bytes sent in the text framing count bytes instead.
 	 * 
 	 * @return Representation of this message as a String.
 	 */
 	@Override
 	public String toString() {
+		decodeFields();
 		String result = msgType.toString();
 		if (msgSender != null) {
 			result += " " + msgSender.length() + " " + msgSender;
 		} else {
 			result += " " + NULL_OUTPUT.length() + " " + NULL_OUTPUT;
 		}
+		if (msgType.hasRecipient()) {
+			if (msgRecipient != null) {
+				result += " " + msgRecipient.length() + " " + msgRecipient;
+			} else {
+				result += " " + NULL_OUTPUT.length() + " " + NULL_OUTPUT;
+			}
+		}
 		if (msgText != null) {
 			result += " " + msgText.length() + " " + msgText;
 		} else {
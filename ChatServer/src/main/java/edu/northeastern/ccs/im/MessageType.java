@@ -1,5 +1,7 @@
 package edu.northeastern.ccs.im;
 
+import java.nio.ByteBuffer;
+
 /**
  * Enumeration for the different types of messages.
  * 
@@ -17,18 +19,123 @@ public enum MessageType {
 	 */
 	QUIT("BYE"),
 	/** Message whose contents is broadcast to all connected users. */
-	BROADCAST("BCT");
+	BROADCAST("BCT"),
+	/**
+	 * Message whose contents is sent only to the user named as its recipient.
+	 */
+	DIRECT("DIR", true),
+	/** Message sent by the user to join the group named in its text. */
+	JOIN_GROUP("JGR"),
+	/** Message sent by the user to leave the group named in its text. */
+	LEAVE_GROUP("LGR"),
+	/**
+	 * Message whose contents is sent only to the members of the group named as its
+	 * recipient.
+	 */
+	GROUP("GRP", true),
+	/** Message sent to check that the other end of the connection is still there. */
+	PING("PIN"),
+	/** Message sent in answer to a ping. */
+	PONG("PON");
+
+	/** All of the message types, so that looking one up does not copy values(). */
+	private static final MessageType[] TYPES = values();
 
 	/** Store the short name of this message type. */
 	private String abbreviation;
 
+	/** Whether messages of this type name a recipient between sender and text. */
+	private boolean addressed;
+
 	/**
 	 * Define the message type and specify its short name.
 	 * 
 	 * @param abbrev Short name of this message type, as a String.
 	 */
 	private MessageType(String abbrev) {
+		this(abbrev, false);
+	}
+
+	/**
+	 * Define the message type, specify its short name, and whether it names a
+	 * recipient.
+	 * 
+	 * @param abbrev    Short name of this message type, as a String.
+	 * @param recipient Whether messages of this type are addressed to a recipient.
+	 */
+	private MessageType(String abbrev, boolean recipient) {
 		abbreviation = abbrev;
+		addressed = recipient;
+	}
+
+	/**
+	 * Return whether messages of this type name a recipient.
+	 * 
+	 * @return True if the message has a recipient argument; false otherwise.
+	 */
+	public boolean hasRecipient() {
+		return addressed;
+	}
+
+	/**
+	 * Return whether the text of messages of this type means anything. Hello,
+	 * quit, ping and pong messages only carry the name of the sender.
+	 * 
+	 * @return True if the text argument is kept; false otherwise.
+	 */
+	public boolean hasText() {
+		return (this != HELLO) && (this != QUIT) && (this != PING) && (this != PONG);
+	}
+
+	/**
+	 * Return the number of arguments following the handle on the wire.
+	 * 
+	 * @return Number of arguments in messages of this type.
+	 */
+	public int getArgumentCount() {
+		return addressed ? 3 : 2;
+	}
+
+	/**
+	 * Return the byte identifying this type in binary frames. New types must be
+	 * added at the end so the codes of the others do not change.
+	 * 
+	 * @return Code of this message type.
+	 */
+	int getCode() {
+		return ordinal();
+	}
+
+	/**
+	 * Find the message type with the given code in binary frames.
+	 * 
+	 * @param code Code read from a binary frame.
+	 * @return The matching message type, or null if there is none.
+	 */
+	static MessageType fromCode(int code) {
+		return ((code >= 0) && (code < TYPES.length)) ? TYPES[code] : null;
+	}
+
+	/**
+	 * Find the message type whose short name starts at the given index of the
+	 * buffer, without decoding the bytes into a String.
+	 * 
+	 * @param buff  Buffer holding bytes read from the network.
+	 * @param index Index of the first byte of the short name.
+	 * @return The matching message type, or null if there is none.
+	 */
+	static MessageType fromWire(ByteBuffer buff, int index) {
+		for (MessageType type : TYPES) {
+			String abbrev = type.abbreviation;
+			int i = 0;
+			while ((i < abbrev.length()) && (buff.get(index + i) == abbrev.charAt(i))) {
+				i++;
+			}
+			if (i == abbrev.length()) {
+				return type;
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -2,16 +2,16 @@ package edu.northeastern.ccs.im;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class is similar to the java.io.PrintWriter class, but this class's
@@ -29,41 +29,100 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class NetworkConnection implements Iterable<Message> {
 
-	/** The size of the incoming buffer. */
-	private static final int BUFFER_SIZE = 64 * 1024;
+	/** The size of the incoming buffer, and so of the largest message accepted. */
+	static final int BUFFER_SIZE = 64 * 1024;
 
-	/** The base for number conversions. */
-	private static final int DECIMAL_RADIX = 10;
+	/**
+	 * Most bytes handed to the socket in one write. Messages queued beyond this
+	 * are left with the client's own queue until the socket has taken these.
+	 */
+	private static final int WRITE_BUDGET = Integer.getInteger("prattle.write.budget", 64 * 1024);
 
-	/** The length of the message handle. */ // MEJ: why is this not in Message?
-	private static final int HANDLE_LENGTH = 3;
+	/**
+	 * Size of the buffer a blocking connection waits for data in. Messages which
+	 * do not fit in it are moved to a buffer from the pool.
+	 */
+	private static final int PROBE_SIZE = 512;
 
-	/** The minimum length of a message. */ // MEJ: why is this not in Message?
-	private static final int MIN_MESSAGE_LENGTH = 7;
+	/** Most messages handed to the socket in one write. */
+	private static final int MAX_GATHER = 64;
 
-	/** The default character set. */
-	private static final String CHARSET_NAME = "us-ascii";
+	/** Bytes taken by the sockets of every connection since the server started. */
+	private static final LongAdder BYTES_WRITTEN = new LongAdder();
 
-	/**
-	 * Number of times to try sending a message before we give up in frustration.
-	 */
-	private static final int MAXIMUM_TRIES_SENDING = 100;
+	/** Messages taken in full by the sockets of every connection since the server started. */
+	private static final LongAdder MESSAGES_WRITTEN = new LongAdder();
 
 	/** Channel over which we will send and receive messages. */
 	private final SocketChannel channel;
 
-	/** Selector for this client's connection. */
-	private Selector selector;
+	/** Handle onto the shared selector thread watching this connection. */
+	private final SelectorPool.Registration registration;
+
+	/** Whether the selector has seen data arrive that we have not read yet. */
+	private volatile boolean readable;
 
-	/** Selection key for this client's connection. */
-	private SelectionKey key;
+	/** Called whenever data arrives for this connection; may be null. */
+	private volatile Runnable readyListener;
 
-	/** Byte buffer to use for incoming messages to this client. */
+	/** Pool lending the buffers incoming messages are read into. */
+	private final BufferPool pool;
+
+	/**
+	 * Buffer borrowed from the pool holding the start of a message whose end has
+	 * not arrived yet, or null when nothing is left over from the last read.
+	 */
 	private ByteBuffer buff;
 
+	/**
+	 * Small buffer of a blocking connection's own, which it waits in for data so
+	 * that no pooled buffer is held while the client is idle; null when the
+	 * connection does not block.
+	 */
+	private final ByteBuffer probe;
+
+	/**
+	 * Lock keeping close from returning the buffer while a read is using it. A
+	 * blocking read waits for the client while holding it, so it is not a monitor:
+	 * a virtual thread waiting inside a synchronized block would keep its carrier
+	 * thread from running any other.
+	 */
+	private final ReentrantLock readLock;
+
+	/** Whether the connection has been closed, after which no buffer is borrowed. */
+	private boolean closed;
+
+	/**
+	 * Lock guarding the output. A blocking connection writes while holding it,
+	 * so like the read lock it is not a monitor, which would pin a virtual thread
+	 * to its carrier for as long as a slow client takes to read.
+	 */
+	private final ReentrantLock writeLock;
+
 	/** Queue of messages for this client. */
 	private Queue<Message> messages;
 
+	/** Parser finding the messages in the bytes read from the network. */
+	private final FrameParser parser;
+
+	/** Bytes queued to go out which the socket has not taken yet. */
+	private final Queue<ByteBuffer> outbound;
+
+	/** Number of bytes in the output waiting to be written. */
+	private long pendingBytes;
+
+	/** Buffers handed to the socket together by one gathering write. */
+	private final ByteBuffer[] gather;
+
+	/** Whether the other end has closed its side of the connection. */
+	private volatile boolean endOfStream;
+
+	/** Whether reads and writes wait for the socket instead of using a selector. */
+	private final boolean blocking;
+
+	/** Framing in which messages are sent over this connection. */
+	private volatile WireFormat format;
+
 	/**
 	 * Creates a new instance of this class. Since, by definition, this class sends
 	 * output over the network, we need to supply the non-blocking Socket instance
@@ -75,74 +134,305 @@ public class NetworkConnection implements Iterable<Message> {
      *                     connection
 	 */
 	public NetworkConnection(SocketChannel sockChan) {
+		this(sockChan, false);
+	}
+
+	/**
+	 * Creates a new instance of this class which either uses the shared selector
+	 * threads or, for a thread dedicated to this connection, waits on the socket.
+	 * A blocking connection's iterator waits until a message arrives and sending
+	 * a message waits until the socket has taken all of it.
+	 * 
+	 * @param sockChan SocketChannel instance to which we will send all
+	 *                 communication.
+	 * @param block    True to wait on the socket; false to use the selector.
+	 */
+	public NetworkConnection(SocketChannel sockChan, boolean block) {
+		blocking = block;
+		// Everybody starts out speaking text
+		format = WireFormat.TEXT;
 		// Create the queue that will hold the messages received from over the network
 		messages = new ConcurrentLinkedQueue<>();
-		// Allocate the buffer we will use to read data
-		buff = ByteBuffer.allocate(BUFFER_SIZE);
+		// Create the queue holding output the socket was not ready to accept
+		outbound = new ArrayDeque<>();
+		gather = new ByteBuffer[MAX_GATHER];
+		// Only borrow a buffer to read data into when there is some to read
+		pool = BufferPool.getDefault();
+		probe = blocking ? ByteBuffer.allocate(PROBE_SIZE) : null;
+		readLock = new ReentrantLock();
+		writeLock = new ReentrantLock();
+		// Create the parser which picks the messages out of that buffer
+		parser = new FrameParser();
 		// Remember the channel that we will be using.
 	   // Set up the SocketChannel over which we will communicate.
 		channel = sockChan;
+		SelectorPool.Registration handle = null;
 		try {
-			channel.configureBlocking(false);
-			// Open the selector to handle our non-blocking I/O
-			selector = Selector.open();
-			// Register our channel to receive alerts to complete the connection
-			key = channel.register(selector, SelectionKey.OP_READ);
-			System.out.println("Selector is open? " + selector.isOpen());
+			channel.configureBlocking(blocking);
+			if (!blocking) {
+				// Have one of the shared selector threads tell us when data arrives
+				handle = SelectorPool.getDefault().register(channel, SelectionKey.OP_READ, this::channelReady);
+			}
 		} catch (IOException e) {
 			// For the moment we are going to simply cover up that there was a problem.
 			ChatLogger.error(e.toString());
 			assert false;
 		}
+		registration = handle;
+	}
+
+	/**
+	 * Called on a selector thread when this connection's channel is ready, either
+	 * because data has arrived or because there is room to write again.
+	 * 
+	 * @param readyOps Operations for which the channel is ready.
+	 */
+	private void channelReady(int readyOps) {
+		if ((readyOps & SelectionKey.OP_READ) != 0) {
+			readable = true;
+		}
+		Runnable listener = readyListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Have the given action run whenever this connection has data waiting to be
+	 * read. The action is run on a selector thread, so it must return quickly.
+	 * 
+	 * @param listener Action to be run when data arrives.
+	 */
+	public void setReadyListener(Runnable listener) {
+		readyListener = listener;
+		// Do not lose data which arrived before anybody was listening
+		if (readable) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Choose the framing in which messages are sent from now on. Messages are
+	 * read in either framing whatever is chosen here.
+	 * 
+	 * @param wireFormat Framing for the messages sent.
+	 */
+	public void setWireFormat(WireFormat wireFormat) {
+		format = wireFormat;
+	}
+
+	/**
+	 * Return the framing in which messages are sent.
+	 * 
+	 * @return Framing for the messages sent.
+	 */
+	public WireFormat getWireFormat() {
+		return format;
 	}
 
 	/**
-	 * Send a Message over the network. This method performs its actions by printing
-	 * the given Message over the SocketNB instance with which the PrintNetNB was
-	 * instantiated. This returns whether our attempt to send the message was
-	 * successful.
+	 * Send a Message over the network. As much of the message as the socket will
+	 * take is written right away; whatever it cannot take yet is kept and written
+	 * by later calls to flush, once the selector reports that the socket has room
+	 * again. This never waits for the client to read, so one slow client cannot
+	 * hold up the thread that is sending to it.
 	 * 
 	 * @param msg Message to be sent out over the network.
-	 * @return True if we successfully send this message; false otherwise.
+	 * @return True if the message was sent or kept for sending; false if the
+	 *         connection has failed.
 	 */
 	public boolean sendMessage(Message msg) {
+		writeLock.lock();
+		try {
+			queueMessage(msg);
+			return flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Add a Message to the output without writing anything yet, so that the next
+	 * call to flush hands it to the socket together with the others queued.
+	 * 
+	 * @param msg Message to be sent out over the network.
+	 */
+	public void queueMessage(Message msg) {
+		ByteBuffer bytes = msg.getEncoded(format);
+		writeLock.lock();
+		try {
+			outbound.add(bytes);
+			pendingBytes += bytes.remaining();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Write out as much of the output kept by earlier calls to sendMessage and
+	 * queueMessage as the socket will take. Queued messages are handed to the
+	 * socket together in gathering writes of up to the write budget, so a burst
+	 * of messages costs one system call rather than one each. When some of the
+	 * output is still left, the selector is asked to report when the socket can
+	 * be written again.
+	 * 
+	 * @return True if the connection is still usable; false if writing failed.
+	 */
+	public boolean flush() {
 		boolean result = true;
-		String str = msg.toString();
-		ByteBuffer wrapper = ByteBuffer.wrap(str.getBytes());
-		int bytesWritten = 0;
-		int attemptsRemaining = MAXIMUM_TRIES_SENDING;
-		while (result && wrapper.hasRemaining() && (attemptsRemaining > 0)) {
-			try {
-				attemptsRemaining--;
-				//channel.write(wrapper) is throwing a NotYetConnected Exception
-				bytesWritten += channel.write(wrapper);
-
-			} catch (IOException e) {
-				// Show that this was unsuccessful
-				System.out.println("sendMessage method caught IOExcpetion");
-				result = false;
+		writeLock.lock();
+		try {
+			while (!outbound.isEmpty()) {
+				int count = 0;
+				long batch = 0;
+				for (ByteBuffer next : outbound) {
+					if ((count == gather.length) || ((count > 0) && (batch + next.remaining() > WRITE_BUDGET))) {
+						break;
+					}
+					gather[count] = next;
+					count += 1;
+					batch += next.remaining();
+				}
+				long written = channel.write(gather, 0, count);
+				pendingBytes -= written;
+				BYTES_WRITTEN.add(written);
+				Arrays.fill(gather, 0, count, null);
+				// Forget the messages which have been written in full
+				while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+					outbound.remove();
+					MESSAGES_WRITTEN.increment();
+				}
+				if ((written < batch) && !blocking) {
+					// The socket is full; try again once it has room
+					registration.enable(SelectionKey.OP_WRITE);
+					break;
+				}
 			}
-		}
-		// Check to see if we were successful in our attempt to write the message
-		if (result && wrapper.hasRemaining()) {
-			ChatLogger.warning("WARNING: Sent only " + bytesWritten + " out of " + wrapper.limit()
-					+ " bytes -- dropping this user.");
+		} catch (IOException e) {
+			// Show that this was unsuccessful
+			ChatLogger.warning("Could not write to the client -- dropping this user: " + e.toString());
+			outbound.clear();
+			pendingBytes = 0;
 			result = false;
+		} finally {
+			writeLock.unlock();
 		}
 		return result;
 	}
 
+	/**
+	 * Return whether the output waiting to be written is still short of the write
+	 * budget, so that more messages should be queued before the next flush.
+	 * 
+	 * @return True if more output can be queued; false otherwise.
+	 */
+	public boolean hasRoomForOutput() {
+		writeLock.lock();
+		try {
+			return pendingBytes < WRITE_BUDGET;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Return whether some output is still waiting for the socket to have room.
+	 * 
+	 * @return True if output is waiting to be written; false otherwise.
+	 */
+	public boolean hasPendingOutput() {
+		writeLock.lock();
+		try {
+			return !outbound.isEmpty();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Return the number of bytes the sockets of every connection have taken since
+	 * the server started. Output still queued, or dropped because a write failed,
+	 * is not counted.
+	 * 
+	 * @return Number of bytes written.
+	 */
+	public static long getBytesWritten() {
+		return BYTES_WRITTEN.sum();
+	}
+
+	/**
+	 * Return the number of messages the sockets of every connection have taken in
+	 * full since the server started. Messages still queued, partly written, or
+	 * dropped because a write failed are not counted.
+	 * 
+	 * @return Number of messages written.
+	 */
+	public static long getMessagesWritten() {
+		return MESSAGES_WRITTEN.sum();
+	}
+
+	/**
+	 * Return whether this connection is holding a buffer borrowed from the pool,
+	 * which it only does while part of a message is waiting for the rest.
+	 * 
+	 * @return True if a read buffer is held; false otherwise.
+	 */
+	boolean holdsReadBuffer() {
+		return buff != null;
+	}
+
+	/**
+	 * Return whether messages have already been read from the network but have not
+	 * yet been handed out by an iterator.
+	 * 
+	 * @return True if messages are waiting to be processed; false otherwise.
+	 */
+	public boolean hasBufferedMessages() {
+		return !messages.isEmpty();
+	}
+
+	/**
+	 * Return whether the other end of this connection has closed it, so that no
+	 * more messages can be received.
+	 * 
+	 * @return True if the client has closed the connection; false otherwise.
+	 */
+	public boolean isEndOfStream() {
+		return endOfStream;
+	}
+
 	/**
 	 * Close this client network connection.
 	 */
 	public void close() {
 		try {
-			selector.close();
+			if (registration != null) {
+				registration.cancel();
+			}
+			// Closing the channel also wakes up a reader waiting on it
 			channel.close();
 		} catch (IOException e) {
 			ChatLogger.error("Caught exception: " + e.toString());
 			assert false;
 		}
+		readLock.lock();
+		try {
+			closed = true;
+			releaseBuffer();
+			parser.close();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Give the borrowed read buffer, if any, back to the pool.
+	 */
+	private void releaseBuffer() {
+		if (buff != null) {
+			pool.release(buff);
+			buff = null;
+		}
 	}
 	
 	  @Override
@@ -165,65 +455,66 @@ public class NetworkConnection implements Iterable<Message> {
 
 	    @Override
 	    public boolean hasNext()  {
-	    	try {
-					System.out.println("Selector.selectNow() = " + selector.selectNow());
-				} catch (Exception e){}
-	      boolean result = false;
-	        try {
-	            // If we have messages waiting for us, return true.
-	            if (!messages.isEmpty()) {
-	                result = true;
+	      // If we have messages waiting for us, return true.
+	      if (!messages.isEmpty()) {
+	        return true;
+	      }
+	      readLock.lock();
+	      try {
+	        // Otherwise, check if we can read in at least one new message
+	        if ((readable || blocking) && !endOfStream && !closed && channel.isConnected()) {
+	          readable = false;
+	          // Wait in the small buffer unless part of a message is already held
+	          ByteBuffer target = (buff != null) ? buff : (blocking ? probe : pool.acquire());
+	          if (target != probe) {
+	            buff = target;
+	          }
+	          try {
+	            // Read in the next set of commands from the channel.
+	            if (channel.read(target) < 0) {
+	              // The client has gone away; nothing more will ever arrive.
+	              endOfStream = true;
+	            } else if (!blocking) {
+	              // Have the selector tell us when more data arrives.
+	              registration.enable(SelectionKey.OP_READ);
 	            }
-	            // Otherwise, check if we can read in at least one new message
-	            else if (selector.selectNow() != 0) {
-	            	System.out.println("selector.selectNow() !=0");
-	                assert key.isReadable();
-	                // Read in the next set of commands from the channel.
-	                channel.read(buff);
-	                selector.selectedKeys().remove(key);
-	                buff.flip();
-	                // Create a decoder which will convert our traffic to something useful
-	                Charset charset = Charset.forName(CHARSET_NAME);
-	                CharsetDecoder decoder = charset.newDecoder();
-	                // Convert the buffer to a format that we can actually use.
-	                CharBuffer charBuffer = decoder.decode(buff);
-	                // get rid of any extra whitespace at the beginning
-	                // Start scanning the buffer for any and all messages.
-	                int start = 0;
-	                // Scan through the entire buffer; check that we have the minimum message size
-	                while ((start + MIN_MESSAGE_LENGTH) <= charBuffer.limit()) {
-	                    // If this is not the first message, skip extra space.
-	                    if (start != 0) {
-	                        charBuffer.position(start);
-	                    }
-	                    // First read in the handle
-	                    String handle = charBuffer.subSequence(0, HANDLE_LENGTH).toString();
-	                    // Skip past the handle
-	                    charBuffer.position(start + HANDLE_LENGTH + 1);
-	                    // Read the first argument containing the sender's name
-	                    String sender = readArgument(charBuffer);
-	                    // Skip past the leading space
-	                    charBuffer.position(charBuffer.position() + 2);
-	                    // Read in the second argument containing the message
-	                    String message = readArgument(charBuffer);
-	                    // Add this message into our queue
-	                    Message newMsg = Message.makeMessage(handle, sender, message);
-	                    messages.add(newMsg);
-	                    // And move the position to the start of the next character
-	                    start = charBuffer.position() + 1;
-	                }
-	                // Move any read messages out of the buffer so that we can add to the end.
-	                buff.position(start);
-	                // Move all of the remaining data to the start of the buffer.
-	                buff.compact();
-	                result = true;
+	          } catch (IOException ioe) {
+	            // The connection was reset; treat it the same as the client going away.
+	            ChatLogger.warning("Could not read from the client: " + ioe.toString());
+	            endOfStream = true;
+	          }
+	          target.flip();
+	          // Pull every complete message out of the buffer.
+	          Message newMsg;
+	          while ((newMsg = parser.next(target)) != null) {
+	            messages.add(newMsg);
+	          }
+	          if (parser.isMalformed()) {
+	            // We cannot find where the next message starts, so give up on the client.
+	            ChatLogger.warning("Client sent a malformed message -- dropping this user.");
+	            endOfStream = true;
+	          }
+	          // Move any partial message to the start of the buffer so we can add to the end.
+	          target.compact();
+	          if (target == probe) {
+	            if ((probe.position() > 0) && !endOfStream) {
+	              // Only now is a pooled buffer needed, to wait for the rest of the message
+	              buff = pool.acquire();
+	              probe.flip();
+	              buff.put(probe);
 	            }
-	        } catch (IOException ioe) {
-	            // For the moment, we will cover up this exception and hope it never occurs.
-	            assert false;
+	            probe.clear();
+	          }
 	        }
-	        // Do we now have any messages?
-	        return result;
+	        // Give the buffer back unless it holds part of a message still to come.
+	        if ((buff != null) && ((buff.position() == 0) || endOfStream)) {
+	          releaseBuffer();
+	        }
+	      } finally {
+	        readLock.unlock();
+	      }
+	      // Do we now have any messages?
+	      return !messages.isEmpty();
 	    }
 	    
 	    @Override
@@ -232,46 +523,8 @@ public class NetworkConnection implements Iterable<Message> {
 	        throw new NoSuchElementException("No next line has been typed in at the keyboard");
 	      }
 	      Message msg = messages.remove();
-	      ChatLogger.info(msg.toString());
+	      ChatLogger.info(ChatLogger.Category.NETWORK, "{0}", msg);
 	      return msg;
 	    }
-	    
-	    /**
-	     * Read in a new argument from the IM server.
-	     * 
-	     * @param charBuffer Buffer holding text from over the network.
-	     * @return String holding the next argument sent over the network.
-	     */
-	    private String readArgument(CharBuffer charBuffer) {
-	        String result = null;
-	        // Compute the current position in the buffer
-	        int pos = charBuffer.position();
-	        // Compute the length of this argument
-	        int length = 0;
-	        // Track the number of locations visited.
-	        int seen = 0;
-	        // Assert that this character is a digit representing the length of the first
-	        // argument
-	        assert Character.isDigit(charBuffer.get(pos));
-	        // Now read in the length of the first argument
-	        while (Character.isDigit(charBuffer.get(pos))) {
-	            // My quick-and-dirty numeric converter
-	            length = length * DECIMAL_RADIX;
-	            length += Character.digit(charBuffer.get(pos), DECIMAL_RADIX);
-	            // Move to the next character
-	            pos += 1;
-	            seen += 1;
-	        }
-	        seen += 1;
-	        if (length == 0) {
-	            // Update our position
-	            charBuffer.position(pos);
-	        } else {
-	            // Length is greater than 0 so result should be something other than null
-	            result = charBuffer.subSequence(seen, length + seen).toString();
-	            charBuffer.position(pos + length);
-	        }
-	        return result;
-	    }
 	  }
 }
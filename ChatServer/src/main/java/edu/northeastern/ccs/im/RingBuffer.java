@@ -0,0 +1,140 @@
+package edu.northeastern.ccs.im;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for handing work from many threads to a single
+ * consumer thread. Producers claim a slot with a single compare-and-set and
+ * never wait for each other or for the consumer; when the buffer is full,
+ * offer fails at once and the caller decides what to do.
+ *
+ * Each slot carries a sequence number telling whether it is free for the
+ * producer of a given position or holds an element for the consumer, as in
+ * Dmitry Vyukov's bounded queue. Only one thread may ever call poll or
+ * drainTo.
+ *
+ * @param <E> Type of the elements held in the buffer.
+ * @version 1.0
+ */
+public final class RingBuffer<E> {
+
+	/** Mask turning a position into a slot index. */
+	private final int mask;
+
+	/** Elements waiting for the consumer. */
+	private final AtomicReferenceArray<E> slots;
+
+	/** Sequence number of each slot. */
+	private final AtomicLongArray sequences;
+
+	/** Next position to be claimed by a producer. */
+	private final AtomicLong tail;
+
+	/** Next position to be taken by the consumer. */
+	private volatile long head;
+
+	/**
+	 * Create a new, empty buffer.
+	 *
+	 * @param capacity Least number of elements the buffer must hold; rounded up to
+	 *                 a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = size - 1;
+		slots = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		tail = new AtomicLong();
+	}
+
+	/**
+	 * Add an element at the end of the buffer, unless it is full.
+	 *
+	 * @param element Element to be added.
+	 * @return True if the element was added; false if the buffer is full.
+	 */
+	public boolean offer(E element) {
+		long pos;
+		int index;
+		while (true) {
+			pos = tail.get();
+			index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+			} else if (diff < 0) {
+				// The consumer has not freed this slot yet
+				return false;
+			}
+		}
+		slots.lazySet(index, element);
+		// Publish the element to the consumer
+		sequences.set(index, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Remove and return the element at the front of the buffer. Only the consumer
+	 * thread may call this.
+	 *
+	 * @return The oldest element, or null if the buffer is empty.
+	 */
+	public E poll() {
+		long pos = head;
+		int index = (int) pos & mask;
+		if (sequences.get(index) != pos + 1) {
+			return null;
+		}
+		E result = slots.get(index);
+		slots.lazySet(index, null);
+		// Hand the slot back to the producers for the next lap
+		sequences.set(index, pos + mask + 1);
+		head = pos + 1;
+		return result;
+	}
+
+	/**
+	 * Move up to the given number of elements into a collection. Only the consumer
+	 * thread may call this.
+	 *
+	 * @param target Collection receiving the elements, oldest first.
+	 * @param max    Most elements to move.
+	 * @return Number of elements moved.
+	 */
+	public int drainTo(Collection<? super E> target, int max) {
+		int count = 0;
+		E element;
+		while ((count < max) && ((element = poll()) != null)) {
+			target.add(element);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Return whether the buffer holds no elements. This is only a snapshot when
+	 * producers are adding at the same time.
+	 *
+	 * @return True if the buffer is empty; false otherwise.
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head;
+	}
+
+	/**
+	 * Return the number of elements the buffer can hold.
+	 *
+	 * @return Capacity of the buffer.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,295 @@
+package edu.northeastern.ccs.im;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Fixed set of selector threads shared by all of the network connections. Each
+ * channel is registered with exactly one of the threads, so the number of
+ * selectors (and the file descriptors and system calls they cost) depends on
+ * the size of the pool rather than on the number of connections.
+ *
+ * Interest in an operation is one-shot: once a channel is reported ready for an
+ * operation, the pool stops watching for that operation until the owner of the
+ * channel enables it again. Readiness is therefore reported once per batch of
+ * data instead of on every pass until somebody gets around to reading it.
+ *
+ * @version 1.0
+ */
+public final class SelectorPool {
+
+	/** Name of the property setting the number of threads in the shared pool. */
+	private static final String THREADS_PROPERTY = "prattle.selector.threads";
+
+	/** Threads which own the selectors in this pool. */
+	private final SelectorThread[] threads;
+
+	/** Index used to spread new channels over the threads. */
+	private final AtomicInteger nextThread;
+
+	/**
+	 * Create a new pool and start its threads.
+	 *
+	 * @param threadCount Number of selector threads to start.
+	 * @throws IOException Exception thrown if a selector could not be opened.
+	 */
+	public SelectorPool(int threadCount) throws IOException {
+		nextThread = new AtomicInteger();
+		threads = new SelectorThread[Math.max(1, threadCount)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new SelectorThread(i);
+			threads[i].start();
+		}
+	}
+
+	/**
+	 * Return the pool shared by all network connections. It is created the first
+	 * time it is needed with one thread per processor, unless the
+	 * prattle.selector.threads property says otherwise.
+	 *
+	 * @return The shared selector pool.
+	 */
+	public static SelectorPool getDefault() {
+		return DefaultHolder.POOL;
+	}
+
+	/**
+	 * Start watching a non-blocking channel. The handler is called on one of the
+	 * pool's threads with the operations for which the channel became ready; it
+	 * must return quickly and never block.
+	 *
+	 * @param channel Non-blocking channel to be watched.
+	 * @param ops     Operations to watch for initially.
+	 * @param handler Called with the ready operations whenever the channel fires.
+	 * @return Handle used to change the interest or stop watching the channel.
+	 */
+	public Registration register(SelectableChannel channel, int ops, IntConsumer handler) {
+		int index = Math.floorMod(nextThread.getAndIncrement(), threads.length);
+		Registration registration = new Registration(threads[index], ops, handler);
+		threads[index].execute(() -> registration.attach(channel));
+		return registration;
+	}
+
+	/**
+	 * Stop all of the threads in this pool.
+	 */
+	public void shutdown() {
+		for (SelectorThread thread : threads) {
+			thread.shutdown();
+		}
+	}
+
+	/**
+	 * Handle onto a channel which is watched by the pool.
+	 */
+	public static final class Registration {
+
+		/** Thread watching this channel. */
+		private final SelectorThread owner;
+
+		/** Called with the ready operations whenever the channel fires. */
+		private final IntConsumer handler;
+
+		/** Operations currently being watched for. */
+		private int interest;
+
+		/** Key for the channel; null until the owning thread has registered it. */
+		private SelectionKey key;
+
+		/**
+		 * Create a new handle.
+		 *
+		 * @param thread   Thread which will watch the channel.
+		 * @param ops      Operations to watch for initially.
+		 * @param callback Called with the ready operations when the channel fires.
+		 */
+		private Registration(SelectorThread thread, int ops, IntConsumer callback) {
+			owner = thread;
+			interest = ops;
+			handler = callback;
+		}
+
+		/**
+		 * Watch for the given operations in addition to those already watched.
+		 *
+		 * @param ops Operations to watch for.
+		 */
+		public void enable(int ops) {
+			boolean changed = false;
+			synchronized (this) {
+				if ((interest & ops) != ops) {
+					interest |= ops;
+					changed = updateKey();
+				}
+			}
+			if (changed) {
+				owner.selector.wakeup();
+			}
+		}
+
+		/**
+		 * Stop watching the channel.
+		 */
+		public void cancel() {
+			synchronized (this) {
+				interest = 0;
+				if (key != null) {
+					key.cancel();
+				}
+			}
+		}
+
+		/**
+		 * Register the channel with the selector. Called on the owning thread.
+		 *
+		 * @param channel Channel to be registered.
+		 */
+		private void attach(SelectableChannel channel) {
+			try {
+				synchronized (this) {
+					key = channel.register(owner.selector, interest, this);
+				}
+			} catch (ClosedChannelException cce) {
+				// The connection was closed before we got to it; nothing to watch.
+			}
+		}
+
+		/**
+		 * Stop watching for the operations which fired and tell the handler about
+		 * them. Called on the owning thread.
+		 *
+		 * @param readyOps Operations for which the channel is ready.
+		 */
+		private void fire(int readyOps) {
+			synchronized (this) {
+				interest &= ~readyOps;
+				updateKey();
+			}
+			handler.accept(readyOps);
+		}
+
+		/**
+		 * Copy the interest set into the selection key, if there is one yet.
+		 *
+		 * @return True if the key was updated; false otherwise.
+		 */
+		private boolean updateKey() {
+			boolean result = false;
+			if (key != null) {
+				try {
+					key.interestOps(interest);
+					result = true;
+				} catch (CancelledKeyException cke) {
+					// The channel has been closed.
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Thread which owns a selector and reports the channels which are ready.
+	 */
+	private static final class SelectorThread extends Thread {
+
+		/** Selector watching the channels assigned to this thread. */
+		private final Selector selector;
+
+		/** Work which other threads need done on this thread. */
+		private final Queue<Runnable> pending;
+
+		/** Whether this thread should keep running. */
+		private volatile boolean running;
+
+		/**
+		 * Create a new selector thread.
+		 *
+		 * @param index Number of this thread, used only in its name.
+		 * @throws IOException Exception thrown if the selector could not be opened.
+		 */
+		SelectorThread(int index) throws IOException {
+			super("prattle-selector-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<>();
+			running = true;
+		}
+
+		/**
+		 * Have the given work done on this thread, so that it cannot block behind a
+		 * select in progress.
+		 *
+		 * @param task Work to be performed.
+		 */
+		void execute(Runnable task) {
+			pending.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Stop this thread; its selector is closed once it notices.
+		 */
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					Runnable task;
+					while ((task = pending.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						try {
+							((Registration) key.attachment()).fire(key.readyOps());
+						} catch (CancelledKeyException cke) {
+							// The channel was closed in the meantime.
+						}
+					}
+				}
+				selector.close();
+			} catch (IOException e) {
+				ChatLogger.error("Selector thread failed: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Lazily creates the pool shared by all network connections.
+	 */
+	private static final class DefaultHolder {
+		/** The shared pool. */
+		private static final SelectorPool POOL = createDefault();
+
+		/**
+		 * Create the shared pool.
+		 *
+		 * @return The new pool.
+		 */
+		private static SelectorPool createDefault() {
+			int size = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+			try {
+				return new SelectorPool(size);
+			} catch (IOException e) {
+				ChatLogger.error("Could not start the selector pool: " + e.toString());
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	}
+}
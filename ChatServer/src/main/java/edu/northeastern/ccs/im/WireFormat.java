@@ -0,0 +1,125 @@
+package edu.northeastern.ccs.im;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Enumeration of the ways a message can be framed on the network.
+ *
+ * TEXT is the original framing, e.g. &quot;BCT 5 alice 11 hello world&quot;,
+ * with every length written out in decimal and every field in US-ASCII.
+ *
+ * BINARY frames start with a marker byte, 0xF0 plus the protocol version, which
+ * can never start a text frame. It is followed by a byte giving the message
+ * type, then a 4-byte big-endian length for each argument (-1 when the argument
+ * is missing), then the arguments themselves in UTF-8. A client asks for it by
+ * sending its HELLO framed this way; the server answers with a HELLO of its own
+ * whose marker carries the version it speaks, and both sides use binary frames
+ * from then on. Clients which log in with a text HELLO keep the text framing.
+ *
+ * DEFLATE is version 2 of the binary framing, which adds compressed frames. A
+ * compressed frame has the version 2 marker and the same type byte and lengths
+ * as an ordinary binary frame, followed by the 4-byte length of the arguments
+ * once deflated and then the deflated arguments. Frames shorter than the
+ * compression threshold are not worth compressing and go out as ordinary
+ * version 1 frames, but HELLO frames are always compressed so that the version
+ * is announced. A client asks for it by sending its HELLO compressed.
+ */
+public enum WireFormat {
+	/** Decimal lengths and US-ASCII fields. */
+	TEXT("text", StandardCharsets.US_ASCII),
+	/** Fixed-width lengths and UTF-8 fields. */
+	BINARY("binary", StandardCharsets.UTF_8),
+	/** Binary framing with the larger frames deflated. */
+	DEFLATE("deflate", StandardCharsets.UTF_8);
+
+	/** Newest version of the binary framing this code speaks. */
+	public static final int BINARY_VERSION = 2;
+
+	/** Version of the binary framing whose frames are not compressed. */
+	static final int PLAIN_VERSION = 1;
+
+	/** Version of the binary framing whose frames are compressed. */
+	static final int DEFLATE_VERSION = 2;
+
+	/**
+	 * Shortest frame, in bytes, which is compressed for clients speaking DEFLATE.
+	 * Deflating a short chat line costs more than the bytes it saves.
+	 */
+	static final int COMPRESSION_THRESHOLD = Integer.getInteger("prattle.compression.threshold", 256);
+
+	/** High bits of the first byte of every binary frame. */
+	static final int BINARY_MARKER = 0xF0;
+
+	/** Mask picking the version out of a binary frame's first byte. */
+	static final int VERSION_MASK = 0x0F;
+
+	/** Number of bytes in front of a binary frame's lengths. */
+	static final int BINARY_PREFIX = 2;
+
+	/** Store the name used to select this format. */
+	private String propertyValue;
+
+	/** Character set the fields are written in. */
+	private Charset charset;
+
+	/**
+	 * Define the format and specify the name used to select it.
+	 *
+	 * @param value Name used to select this format, as a String.
+	 * @param chars Character set the fields are written in.
+	 */
+	private WireFormat(String value, Charset chars) {
+		propertyValue = value;
+		charset = chars;
+	}
+
+	/**
+	 * Find the format selected by the given name. Unknown or missing names select
+	 * the text framing.
+	 *
+	 * @param value Name of the format that was requested (may be null)
+	 * @return The matching format.
+	 */
+	public static WireFormat fromName(String value) {
+		WireFormat result = TEXT;
+		for (WireFormat format : values()) {
+			if (format.propertyValue.equalsIgnoreCase(value)) {
+				result = format;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the character set the fields of messages in this format are written
+	 * in.
+	 *
+	 * @return The character set.
+	 */
+	Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Return whether the given byte starts a binary frame of a version this code
+	 * speaks.
+	 *
+	 * @param first First byte of a frame.
+	 * @return True if the frame is binary; false otherwise.
+	 */
+	static boolean isBinaryMarker(byte first) {
+		int version = first & VERSION_MASK;
+		return ((first & ~VERSION_MASK & 0xFF) == BINARY_MARKER) && (version >= 1) && (version <= BINARY_VERSION);
+	}
+
+	/**
+	 * Return a representation of this format as a String.
+	 *
+	 * @return Name used to select this format.
+	 */
+	@Override
+	public String toString() {
+		return propertyValue;
+	}
+}
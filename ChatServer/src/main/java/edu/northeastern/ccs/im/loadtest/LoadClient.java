@@ -0,0 +1,121 @@
+package edu.northeastern.ccs.im.loadtest;
+
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.northeastern.ccs.im.Histogram;
+import edu.northeastern.ccs.im.Message;
+import edu.northeastern.ccs.im.NetworkConnection;
+import edu.northeastern.ccs.im.WireFormat;
+
+/**
+ * One simulated user of the load generator. It logs in, broadcasts the
+ * messages the generator hands it, and times every broadcast it receives back
+ * from the server. Each broadcast carries the time at which it was meant to be
+ * sent, so the latency recorded includes any time the message spent waiting
+ * because the generator or the server had fallen behind.
+ *
+ * @version 1.0
+ */
+final class LoadClient {
+
+	/** Start of the text of every message the load generator sends. */
+	static final String STAMP = "t=";
+
+	/** Name with which this user logs in. */
+	private final String name;
+
+	/** Connection to the server. */
+	private final NetworkConnection connection;
+
+	/** Messages received from the server. */
+	private final Iterator<Message> messages;
+
+	/** Latencies of the messages received, in nanoseconds. */
+	private final Histogram latencies;
+
+	/** Number of timed messages received, across all users. */
+	private final LongAdder received;
+
+	/** Messages meant to be sent before this time are not timed. */
+	private final AtomicLong since;
+
+	/**
+	 * Create a user talking to the server over the given channel.
+	 *
+	 * @param user     Name with which the user logs in.
+	 * @param channel  Channel connected to the server.
+	 * @param recorder Histogram receiving the latencies.
+	 * @param counter  Counter of the timed messages received.
+	 * @param start    Time, from System.nanoTime, from which messages are timed.
+	 */
+	LoadClient(String user, SocketChannel channel, Histogram recorder, LongAdder counter, AtomicLong start) {
+		name = user;
+		connection = new NetworkConnection(channel);
+		messages = connection.iterator();
+		latencies = recorder;
+		received = counter;
+		since = start;
+	}
+
+	/**
+	 * Start reading whatever the server sends and log in.
+	 *
+	 * @param format Framing in which to talk to the server.
+	 */
+	void logIn(WireFormat format) {
+		connection.setReadyListener(this::drain);
+		// The framing the login is sent in is the one the server answers in
+		connection.setWireFormat(format);
+		connection.sendMessage(Message.makeSimpleLoginMessage(name));
+	}
+
+	/**
+	 * Broadcast a message stamped with the time it was meant to be sent.
+	 *
+	 * @param intended Time at which the message was meant to be sent, from
+	 *                 System.nanoTime.
+	 * @param padding  Text making the message the size wanted.
+	 */
+	void send(long intended, String padding) {
+		connection.sendMessage(Message.makeBroadcastMessage(name, STAMP + intended + " " + padding));
+	}
+
+	/**
+	 * Log out and close the connection.
+	 */
+	void quit() {
+		connection.sendMessage(Message.makeQuitMessage(name));
+		connection.flush();
+		connection.close();
+	}
+
+	/**
+	 * Finish writing whatever the socket could not take, then time every message
+	 * which has arrived and answer any pings. Called on a selector thread whenever the channel is
+	 * ready.
+	 */
+	private synchronized void drain() {
+		connection.flush();
+		while (messages.hasNext()) {
+			Message msg = messages.next();
+			if (msg.isPing()) {
+				// Show the server we are still here
+				connection.sendMessage(Message.makePongMessage(name));
+				continue;
+			}
+			String text = msg.getText();
+			if ((text != null) && text.startsWith(STAMP)) {
+				int end = text.indexOf(' ');
+				long sent = Long.parseLong(text.substring(STAMP.length(), (end < 0) ? text.length() : end));
+				// Ignore whatever was still arriving from before measuring started
+				if (sent - since.get() >= 0) {
+					latencies.record(System.nanoTime() - sent);
+					received.increment();
+				}
+			}
+		}
+	}
+}
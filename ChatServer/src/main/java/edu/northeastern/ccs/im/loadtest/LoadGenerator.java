@@ -0,0 +1,200 @@
+package edu.northeastern.ccs.im.loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.Histogram;
+import edu.northeastern.ccs.im.WireFormat;
+
+/**
+ * Headless load generator for a running Prattle server. It opens many
+ * connections over the loopback interface, logs each of them in, and has them
+ * broadcast messages at a fixed overall rate. Every connection receives every
+ * broadcast, and the time from when each message was meant to be sent until
+ * it arrives is recorded in a histogram. Once a second it prints how many
+ * messages were delivered, and at the end the throughput and latency
+ * percentiles.
+ *
+ * It is configured with the following system properties:
+ * <ul>
+ * <li>loadtest.host, loadtest.port: the server (default localhost:4545)</li>
+ * <li>loadtest.connections: number of users (default 100)</li>
+ * <li>loadtest.rate: broadcasts per second across all users (default 1000)</li>
+ * <li>loadtest.size: bytes of text in each message (default 64)</li>
+ * <li>loadtest.warmup: seconds before measuring starts (default 5)</li>
+ * <li>loadtest.duration: seconds measured (default 30)</li>
+ * <li>loadtest.format: framing the users speak, text, binary or deflate
+ * (default text)</li>
+ * </ul>
+ *
+ * @version 1.0
+ */
+public final class LoadGenerator {
+
+	/** Nanoseconds in a microsecond, for reporting. */
+	private static final double NANOS_PER_MICRO = 1000.0;
+
+	/** Percentiles reported at the end of the run. */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/** Names under which the percentiles are reported. */
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	/** Longest the sender sleeps between messages. */
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** Users connected to the server. */
+	private final List<LoadClient> clients;
+
+	/** Latencies of the messages received, in nanoseconds. */
+	private final Histogram latencies;
+
+	/** Number of timed messages received. */
+	private final LongAdder received;
+
+	/** Time, from System.nanoTime, from which messages are timed. */
+	private final AtomicLong since;
+
+	/**
+	 * Private constructor; the generator is run from main.
+	 */
+	private LoadGenerator() {
+		clients = new ArrayList<>();
+		latencies = new Histogram();
+		received = new LongAdder();
+		since = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Run the load test described by the system properties.
+	 *
+	 * @param args Not used.
+	 * @throws IOException Exception thrown if the server cannot be reached.
+	 */
+	public static void main(String[] args) throws IOException {
+		// Logging every message read would measure the logger instead
+		ChatLogger.setLevel(ChatLogger.Category.NETWORK, Level.OFF);
+		LoadGenerator generator = new LoadGenerator();
+		generator.connect(System.getProperty("loadtest.host", "localhost"), Integer.getInteger("loadtest.port", 4545),
+				Integer.getInteger("loadtest.connections", 100),
+				WireFormat.fromName(System.getProperty("loadtest.format")));
+		char[] padding = new char[Math.max(0, Integer.getInteger("loadtest.size", 64) - 24)];
+		Arrays.fill(padding, 'x');
+		int rate = Math.max(1, Integer.getInteger("loadtest.rate", 1000));
+		int warmup = Integer.getInteger("loadtest.warmup", 5);
+		int duration = Integer.getInteger("loadtest.duration", 30);
+		generator.run(rate, warmup, new String(padding));
+		generator.reset();
+		long measured = generator.run(rate, duration, new String(padding));
+		// Give the last messages a moment to arrive
+		LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+		generator.report(measured, duration);
+		generator.quit();
+	}
+
+	/**
+	 * Open the connections and log every user in.
+	 *
+	 * @param host   Host the server runs on.
+	 * @param port   Port the server listens on.
+	 * @param count  Number of connections to open.
+	 * @param format Framing the users speak.
+	 * @throws IOException Exception thrown if a connection cannot be opened.
+	 */
+	private void connect(String host, int port, int count, WireFormat format) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		for (int i = 0; i < count; i++) {
+			LoadClient client = new LoadClient("load" + i, SocketChannel.open(address), latencies, received, since);
+			client.logIn(format);
+			clients.add(client);
+		}
+		// The server does not answer a login, so give it time to handle them all
+		LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+		System.out.printf("Connected %d %s users to %s%n", count, format, address);
+	}
+
+	/**
+	 * Send messages at the given rate, taking turns between the users, printing
+	 * the number delivered each second.
+	 *
+	 * @param rate    Messages per second.
+	 * @param seconds How long to send for.
+	 * @param padding Text making each message the size wanted.
+	 * @return Number of messages sent.
+	 */
+	private long run(int rate, int seconds, String padding) {
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+		long lastReceived = received.sum();
+		long count = 0;
+		// Messages are stamped with when they were due, not when they were sent
+		for (long due = start; due < end; due += interval) {
+			long now = System.nanoTime();
+			while (now < due) {
+				LockSupport.parkNanos(Math.min(due - now, MAX_PARK_NANOS));
+				now = System.nanoTime();
+			}
+			clients.get((int) (count % clients.size())).send(due, padding);
+			count++;
+			if (now >= nextReport) {
+				long total = received.sum();
+				System.out.printf("%,d messages sent, %,d delivered in the last second%n", count, total - lastReceived);
+				lastReceived = total;
+				nextReport += TimeUnit.SECONDS.toNanos(1);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Forget what happened while warming up.
+	 */
+	private void reset() {
+		since.set(System.nanoTime());
+		latencies.reset();
+		received.reset();
+	}
+
+	/**
+	 * Print the throughput and latencies measured.
+	 *
+	 * @param measured Number of messages sent while measuring.
+	 * @param seconds  How long the measuring lasted.
+	 */
+	private void report(long measured, int seconds) {
+		long delivered = received.sum();
+		long expected = measured * clients.size();
+		System.out.printf("Sent %,d messages to %,d users: %,d of %,d deliveries arrived (%.2f%%)%n", measured,
+				clients.size(), delivered, expected, (expected == 0) ? 0 : 100.0 * delivered / expected);
+		System.out.printf("Throughput: %,.0f deliveries/s%n", delivered / (double) Math.max(1, seconds));
+		StringBuilder line = new StringBuilder("Latency (us):");
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			line.append(String.format(" %s=%.1f", PERCENTILE_NAMES[i],
+					latencies.getPercentile(PERCENTILES[i]) / NANOS_PER_MICRO));
+		}
+		line.append(String.format(" max=%.1f mean=%.1f", latencies.getMax() / NANOS_PER_MICRO,
+				latencies.getMean() / NANOS_PER_MICRO));
+		System.out.println(line);
+	}
+
+	/**
+	 * Log every user out.
+	 */
+	private void quit() {
+		for (LoadClient client : clients) {
+			client.quit();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Event-driven replacement for polling every client at a fixed rate. The shared
+ * selector threads report when a client's connection has data waiting, and the
+ * reactor then hands the ClientRunnable that owns it to the worker pool. Idle
+ * clients therefore cost nothing until their channel fires or a message is
+ * queued for them.
+ */
+class ClientReactor {
+
+	/** Pool of threads on which the clients are run. */
+	private final Executor workers;
+
+	/**
+	 * Create the reactor.
+	 *
+	 * @param workerPool Pool of threads on which the clients will be run.
+	 */
+	ClientReactor(Executor workerPool) {
+		workers = workerPool;
+	}
+
+	/**
+	 * Start running a newly accepted client whenever it has work to do.
+	 *
+	 * @param client ClientRunnable which will be run when its connection is ready.
+	 */
+	void register(ClientRunnable client) {
+		client.setReactor(this);
+	}
+
+	/**
+	 * Run the given task on the worker pool.
+	 *
+	 * @param task Work which a client needs done.
+	 */
+	void dispatch(Runnable task) {
+		workers.execute(task);
+	}
+}
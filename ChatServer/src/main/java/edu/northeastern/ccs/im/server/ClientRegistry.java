@@ -0,0 +1,161 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the clients connected to the server. Every connection is tracked
+ * from the moment it is accepted; once a client has logged in, it can also be
+ * looked up by its user id or by its name. Adding, removing and looking up a
+ * client all take constant time without any locking, and iterating over the
+ * clients sees a weakly consistent view that never blocks new arrivals.
+ *
+ * Names are matched ignoring case, the same way incoming messages are checked.
+ * If two clients log in with the same name, the later one is found by name
+ * until it leaves, and then the earlier one is found again. Each name holds a
+ * small array of its clients, replaced whenever one of them comes or goes, so
+ * looking a name up still takes no lock.
+ */
+class ClientRegistry {
+
+	/** Every client whose connection has been accepted and not yet closed. */
+	private final Set<ClientRunnable> connected;
+
+	/** Clients which have logged in, by user id. */
+	private final Map<Integer, ClientRunnable> byId;
+
+	/** Clients which have logged in, by name, most recent last. */
+	private final Map<String, ClientRunnable[]> byName;
+
+	/**
+	 * Create a new, empty registry.
+	 */
+	ClientRegistry() {
+		connected = ConcurrentHashMap.newKeySet();
+		byId = new ConcurrentHashMap<>();
+		byName = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Start tracking a client whose connection has just been accepted.
+	 *
+	 * @param client Client which has connected.
+	 */
+	void add(ClientRunnable client) {
+		connected.add(client);
+	}
+
+	/**
+	 * Make a client which has just logged in available by its user id and name.
+	 *
+	 * @param client Client which has logged in.
+	 */
+	void login(ClientRunnable client) {
+		byId.put(client.getUserId(), client);
+		byName.merge(key(client.getName()), new ClientRunnable[] { client }, ClientRegistry::concat);
+	}
+
+	/**
+	 * Stop tracking a client.
+	 *
+	 * @param client Client which has gone away.
+	 * @return True if the client was being tracked; false otherwise.
+	 */
+	boolean remove(ClientRunnable client) {
+		boolean result = connected.remove(client);
+		if (client.getName() != null) {
+			byId.remove(client.getUserId(), client);
+			byName.computeIfPresent(key(client.getName()), (name, clients) -> without(clients, client));
+		}
+		return result;
+	}
+
+	/**
+	 * Find the logged in client with the given user id.
+	 *
+	 * @param userId User id of the client.
+	 * @return The client, or null if no such client is logged in.
+	 */
+	ClientRunnable findById(int userId) {
+		return byId.get(userId);
+	}
+
+	/**
+	 * Find the logged in client with the given name.
+	 *
+	 * @param name Name the client logged in with.
+	 * @return The client, or null if no such client is logged in.
+	 */
+	ClientRunnable findByName(String name) {
+		ClientRunnable[] clients = (name == null) ? null : byName.get(key(name));
+		return (clients == null) ? null : clients[clients.length - 1];
+	}
+
+	/**
+	 * Return a weakly consistent view of the clients which have logged in.
+	 *
+	 * @return Clients which have logged in.
+	 */
+	Collection<ClientRunnable> loggedIn() {
+		return byId.values();
+	}
+
+	/**
+	 * Return a weakly consistent view of every connected client, whether or not it
+	 * has logged in.
+	 *
+	 * @return Clients which are connected.
+	 */
+	Collection<ClientRunnable> connected() {
+		return connected;
+	}
+
+	/**
+	 * Return the clients with a name followed by those which have just logged in
+	 * with it as well.
+	 *
+	 * @param clients Clients already logged in with the name.
+	 * @param added   Clients which have just logged in with it.
+	 * @return New array holding both.
+	 */
+	private static ClientRunnable[] concat(ClientRunnable[] clients, ClientRunnable[] added) {
+		ClientRunnable[] result = Arrays.copyOf(clients, clients.length + added.length);
+		System.arraycopy(added, 0, result, clients.length, added.length);
+		return result;
+	}
+
+	/**
+	 * Return the clients with a name other than the one which has gone away.
+	 *
+	 * @param clients Clients logged in with the name.
+	 * @param client  Client which has gone away.
+	 * @return New array without the client; null if no client is left.
+	 */
+	private static ClientRunnable[] without(ClientRunnable[] clients, ClientRunnable client) {
+		ClientRunnable[] result = new ClientRunnable[clients.length];
+		int count = 0;
+		for (ClientRunnable other : clients) {
+			if (other != client) {
+				result[count++] = other;
+			}
+		}
+		if (count == clients.length) {
+			return clients;
+		}
+		return (count == 0) ? null : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Turn a name into the key under which it is stored.
+	 *
+	 * @param name Name of a client.
+	 * @return Key for the name.
+	 */
+	private static String key(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+}
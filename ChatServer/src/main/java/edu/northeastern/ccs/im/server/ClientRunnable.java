@@ -1,20 +1,25 @@
 package edu.northeastern.ccs.im.server;
 
 import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.ChatLogger.Category;
 import edu.northeastern.ccs.im.Message;
 import edu.northeastern.ccs.im.NetworkConnection;
+import edu.northeastern.ccs.im.WireFormat;
 
 /**
  * Instances of this class handle all of the incoming communication from a
  * single IM client. Instances are created when the client signs-on with the
- * server. After instantiation, it is executed periodically on one of the
- * threads from the thread pool and will stop being run only when the client
- * signs off.
+ * server. After instantiation, it is executed on one of the threads from the
+ * thread pool, either periodically or, in reactor mode, whenever its client has
+ * work to be done, and will stop being run only when the client signs off.
  * 
  * This work is licensed under the Creative Commons Attribution-ShareAlike 4.0
  * International License. To view a copy of this license, visit
@@ -25,6 +30,12 @@ import edu.northeastern.ccs.im.NetworkConnection;
  * @version 1.3
  */
 public class ClientRunnable implements Runnable {
+	/** Source of the user ids handed out to clients as they log in. */
+	private static final AtomicInteger NEXT_USER_ID = new AtomicInteger();
+
+	/** Value of the replay's end until the client has been given its replay. */
+	private static final long REPLAY_PENDING = Long.MAX_VALUE;
+
 	/**
 	 * Utility class which we will use to send and receive communication to this
 	 * client.
@@ -41,13 +52,13 @@ public class ClientRunnable implements Runnable {
 	 * Whether this client has been initialized, set its user name, and is ready to
 	 * receive messages.
 	 */
-	private boolean initialized;
+	private volatile boolean initialized;
 
 	/**
 	 * Whether this client has been terminated, either because he quit or due to
 	 * prolonged inactivity.
 	 */
-	private boolean terminate;
+	private volatile boolean terminate;
 
 	/** The timer that keeps track of the clients activity. */
 	private ClientTimer timer;
@@ -59,7 +70,50 @@ public class ClientRunnable implements Runnable {
 	private ScheduledFuture<?> runnableMe;
 
 	/** Collection of messages queued up to be sent to this client. */
-	private Queue<Message> waitingList;
+	private OutboundQueue waitingList;
+
+	/** Direct messages sent while this client was offline, still to be delivered. */
+	private OfflineMailboxes.Delivery mail;
+
+	/** Whether mail was stored for this client after its mailbox was opened. */
+	private volatile boolean mailWaiting;
+
+	/** Messages sent before this client logged in, still to be replayed to it. */
+	private MessageHistory.Replay replay;
+
+	/**
+	 * History sequence number at which the replay this client was given at login
+	 * ends; broadcasts numbered below it reach the client through the replay.
+	 * REPLAY_PENDING until the replay has been taken.
+	 */
+	private volatile long replayed;
+
+	/** Lock held while the replay is taken, so broadcasts can wait to see where it ends. */
+	private final Object replayLock;
+
+	/** Keys of the groups this client has joined, as the registry stores them. */
+	private final Set<String> groups;
+
+	/** Reactor which runs this client on demand; null when it is polled instead. */
+	private ClientReactor reactor;
+
+	/**
+	 * Number of times this client has been woken since it was last run. The client
+	 * is handed to the thread pool only when this goes up from zero.
+	 */
+	private final AtomicInteger wakeups;
+
+	/** Whether this client runs on threads of its own instead of the pool. */
+	private volatile boolean threaded;
+
+	/** Thread sending this client its messages when it has threads of its own. */
+	private volatile Thread writer;
+
+	/** Number of pings sent since the client last sent anything. */
+	private final AtomicInteger missedHeartbeats;
+
+	/** Time, from System.nanoTime, at which the client was last handed to the pool. */
+	private volatile long dispatchedAt;
 
 	/**
 	 * Create a new thread with which we will communicate with this single client.
@@ -71,13 +125,24 @@ public class ClientRunnable implements Runnable {
 		connection = network;
 		// Mark that we are not initialized
 		initialized = false;
+		// Nothing has been replayed yet
+		replayed = REPLAY_PENDING;
+		replayLock = new Object();
 		// Mark that we are not terminated
 		terminate = false;
 		// Create the queue of messages to be sent
-		waitingList = new ConcurrentLinkedQueue<>();
+		waitingList = new OutboundQueue(ServerConstants.OUTBOUND_QUEUE_MESSAGES,
+				ServerConstants.OUTBOUND_QUEUE_BYTES, ServerConstants.SLOW_CONSUMER_POLICY);
+		// The client starts out without any groups
+		groups = ConcurrentHashMap.newKeySet();
+		// Nothing has asked for this client to be run yet
+		wakeups = new AtomicInteger();
+		// The client has not been pinged yet
+		missedHeartbeats = new AtomicInteger();
 		// Mark that the client is active now and start the timer until we
-		// terminate for inactivity.
-		timer = new ClientTimer();
+		// terminate for inactivity. When it runs out, run the client so it can
+		// terminate itself.
+		timer = new ClientTimer(this::wakeUp);
 	}
 
 	/**
@@ -92,12 +157,36 @@ public class ClientRunnable implements Runnable {
 			if (setUserName(msg.getName())) {
 				// Update the time until we terminate this client due to inactivity.
 				timer.updateAfterInitialization();
-				// Set that the client is initialized.
+				// A client logging in with a binary frame is answered, and then sent, in kind.
+				if (msg.getWireFormat() != WireFormat.TEXT) {
+					connection.setWireFormat(msg.getWireFormat());
+					waitingList.setWireFormat(msg.getWireFormat());
+					enqueueMessage(Message.makeSimpleLoginMessage(ServerConstants.SERVER_NAME));
+				}
+				// Let everybody else find this client before it counts as initialized.
+				Prattle.addLoggedInClient(this);
+				// Set that the client is initialized before catching it up, so that
+				// whatever is sent meanwhile is queued rather than missed.
 				initialized = true;
+				// Catch the client up on its mail and what was said before it arrived.
+				mail = Prattle.openMailbox(name);
+				synchronized (replayLock) {
+					replay = Prattle.replayHistory();
+					replayed = (replay != null) ? replay.getEnd() : 0;
+				}
+				if (replay != null) {
+					// Come back for whatever the journal has yet to write
+					replay.setWakeUp(this::wakeUp);
+				}
+				if ((mail != null) || (replay != null)) {
+					wakeUp();
+				}
 			} else {
 				initialized = false;
 			}
-		} else {System.out.println("messageItr does not have next");}
+		} else {
+			ChatLogger.debug(Category.CLIENT, "No login message waiting yet");
+		}
 	}
 
 	/**
@@ -113,15 +202,14 @@ public class ClientRunnable implements Runnable {
 	}
 
 	/**
-	 * Immediately send this message to the client. This returns if we were
-	 * successful or not in our attempt to send the message.
+	 * Hand this message to the client's connection, which writes it out with the
+	 * others queued at the next flush.
 	 * 
-	 * @param message Message to be sent immediately.
-	 * @return True if we sent the message successfully; false otherwise.
+	 * @param message Message to be sent.
 	 */
-	private boolean sendMessage(Message message) {
-		ChatLogger.info("\t" + message);
-		return connection.sendMessage(message);
+	private void sendMessage(Message message) {
+		ChatLogger.info(Category.CLIENT, "\t{0}", message);
+		connection.queueMessage(message);
 	}
 
 	/**
@@ -136,7 +224,7 @@ public class ClientRunnable implements Runnable {
 		if (userName != null) {
 			// Optimistically set this users ID number.
 			setName(userName);
-			userId = hashCode();
+			userId = NEXT_USER_ID.incrementAndGet();
 			result = true;
 		} else {
 			// Clear this name; we cannot use it. *sigh*
@@ -145,15 +233,72 @@ public class ClientRunnable implements Runnable {
 		return result;
 	}
 
+	/**
+	 * Queue a message broadcast to everyone, unless it was broadcast while this
+	 * client was logging in and is already part of the history it is replayed.
+	 *
+	 * @param message  Complete message to be sent.
+	 * @param sequence Sequence number the history gave the message; negative if
+	 *                 it was not recorded.
+	 */
+	void enqueueBroadcast(Message message, long sequence) {
+		long end = replayed;
+		if (end == REPLAY_PENDING) {
+			// The client is taking its replay; once it has, we know where it ends. A
+			// message recorded before the replay is taken is part of it.
+			synchronized (replayLock) {
+				end = replayed;
+			}
+		}
+		if ((sequence < 0) || (sequence >= end)) {
+			enqueueMessage(message);
+		}
+	}
+
+	/**
+	 * Have this client look in its mailbox again, because a direct message was
+	 * stored there while the client was logging in.
+	 */
+	void checkMail() {
+		mailWaiting = true;
+		wakeUp();
+	}
+
 	/**
 	 * Add the given message to this client to the queue of message to be sent to
-	 * the client.
+	 * the client. If the client has fallen too far behind, the queue's policy may
+	 * drop messages or have the client disconnected instead.
 	 * 
 	 * @param message Complete message to be sent.
 	 */
 	public void enqueueMessage(Message message) {
-		waitingList.add(message);
-		System.out.println("Messaged enqued to ClientRunnable: " + message.toString());
+		if (!waitingList.offer(message)) {
+			ChatLogger.warning("Disconnecting " + name + " for falling too far behind.");
+			if (!terminate) {
+				ServerMetrics.clientDropped();
+			}
+			abort();
+		}
+		// Make sure the message goes out without waiting for the client to speak
+		wakeUp();
+	}
+
+	/**
+	 * Send this client a ping, unless it has already left too many unanswered, in
+	 * which case its connection is assumed dead and the client is terminated.
+	 * 
+	 * @param ping Ping shared by every client being checked.
+	 */
+	void heartbeat(Message ping) {
+		if (missedHeartbeats.incrementAndGet() > ServerConstants.HEARTBEAT_MISSES) {
+			if (!terminate) {
+				ChatLogger.warning("Disconnecting " + name + " for not answering pings.");
+				ServerMetrics.clientDead();
+			}
+			abort();
+		} else {
+			enqueueMessage(ping);
+		}
 	}
 
 	/**
@@ -174,6 +319,15 @@ public class ClientRunnable implements Runnable {
 		this.name = name;
 	}
 
+	/**
+	 * Return the keys of the groups this client has joined.
+	 * 
+	 * @return Keys of the groups the client is a member of.
+	 */
+	Set<String> getGroups() {
+		return groups;
+	}
+
 	/**
 	 * Gets the name of the user for which this ClientRunnable was created.
 	 * 
@@ -199,6 +353,10 @@ public class ClientRunnable implements Runnable {
 	 * @see java.lang.Thread#run()
 	 */
 	public void run() {
+		// A polled client is late by however long ago its run was due
+		if (runnableMe != null) {
+			ServerMetrics.recordSchedulingLag(-runnableMe.getDelay(TimeUnit.NANOSECONDS));
+		}
 		// The client must be initialized before we can do anything else
 		if (!initialized) {
 			checkForInitialization();
@@ -206,13 +364,17 @@ public class ClientRunnable implements Runnable {
 			handleIncomingMessages();
 			handleOutgoingMessages();
 		}
-		System.out.println("At this point, isIntialized? " + initialized);
+		ChatLogger.debug(Category.CLIENT, "At this point, isInitialized? {0}", initialized);
 		// Finally, check if this client have been inactive for too long and,
 		// when they have, terminate the client.
 		if (timer.isBehind()) {
 			ChatLogger.error("Timing out or forcing off a user " + name);
 			terminate = true;
 		}
+		// A client which closed its end of the connection is gone for good.
+		if (connection.isEndOfStream() && !connection.hasBufferedMessages()) {
+			terminate = true;
+		}
 		if (terminate) {
 			terminateClient();
 		}
@@ -220,61 +382,281 @@ public class ClientRunnable implements Runnable {
 
 	/**
 	 * Checks incoming messages and performs appropriate actions based on the type
-	 * of message.
+	 * of message. Every message that is available is handled, up to the budget
+	 * each client gets per run; anything beyond that waits for the next run.
 	 */
 	protected void handleIncomingMessages() {
 		// Client has already been initialized, so we should first check
 		// if there are any input
 		// messages.
 		Iterator<Message> messageIter = connection.iterator();
-		if (messageIter.hasNext()) {
-			// Get the next message
-			Message msg = messageIter.next();
-			// If the message is a broadcast message, send it out
-			if (msg.terminate()) {
-				// Stop sending the poor client message.
-				terminate = true;
-				// Reply with a quit message.
-				enqueueMessage(Message.makeQuitMessage(name));
-			} else {
-				// Check if the message is legal formatted
-				if (messageChecks(msg)) {
+		int budget = ServerConstants.INBOUND_BUDGET;
+		while ((budget > 0) && !terminate && messageIter.hasNext()) {
+			budget--;
+			handleIncomingMessage(messageIter.next());
+		}
+	}
+
+	/**
+	 * Perform the appropriate action for a single incoming message.
+	 * 
+	 * @param msg Message received from the client.
+	 */
+	private void handleIncomingMessage(Message msg) {
+		ServerMetrics.messageReceived();
+		// Anything the client sends shows it is still there
+		missedHeartbeats.set(0);
+		// If the message is a broadcast message, send it out
+		if (msg.terminate()) {
+			// Stop sending the poor client message.
+			terminate = true;
+			// Reply with a quit message.
+			enqueueMessage(Message.makeQuitMessage(name));
+		} else if (msg.isPing()) {
+			enqueueMessage(Message.makePongMessage(ServerConstants.SERVER_NAME));
+		} else if (!msg.isPong()) {
+			// Check if the message is legal formatted
+			if (messageChecks(msg)) {
+				// Check for our "special messages"
+				if (msg.isBroadcastMessage()) {
 					// Check for our "special messages"
-					if (msg.isBroadcastMessage()) {
-						// Check for our "special messages"
-						Prattle.broadcastMessage(msg);
+					Prattle.broadcastMessage(msg);
+				} else if (msg.isDirectMessage() && !Prattle.sendDirectMessage(msg)) {
+					// Let the sender know their message went nowhere
+					enqueueMessage(Message.makeBroadcastMessage(ServerConstants.BOUNCER_ID,
+							"Last message was not delivered because " + msg.getRecipient() + " is not online."));
+				} else if (msg.isJoinGroup() && (msg.getText() != null)) {
+					String group = GroupRegistry.key(msg.getText());
+					groups.add(group);
+					Prattle.joinGroup(group, this);
+					// A client terminated meanwhile may already have left its groups
+					if (terminate) {
+						Prattle.leaveGroup(group, this);
 					}
-				} else {
-					Message sendMsg;
-					sendMsg = Message.makeBroadcastMessage(ServerConstants.BOUNCER_ID,
-							"Last message was rejected because it specified an incorrect user name.");
-					enqueueMessage(sendMsg);
+				} else if (msg.isLeaveGroup() && (msg.getText() != null)) {
+					String group = GroupRegistry.key(msg.getText());
+					groups.remove(group);
+					Prattle.leaveGroup(group, this);
+				} else if (msg.isGroupMessage() && !Prattle.sendGroupMessage(msg, this)) {
+					enqueueMessage(Message.makeBroadcastMessage(ServerConstants.BOUNCER_ID,
+							"Last message was rejected because you are not a member of " + msg.getRecipient() + "."));
 				}
+			} else {
+				Message sendMsg;
+				sendMsg = Message.makeBroadcastMessage(ServerConstants.BOUNCER_ID,
+						"Last message was rejected because it specified an incorrect user name.");
+				enqueueMessage(sendMsg);
 			}
 		}
 	}
 
 	/**
 	 * Sends the enqueued messages to the printer and makes sure they were sent out.
+	 * Messages are only handed to the connection while it is keeping up; once the
+	 * socket is full, the rest wait here until it has room again.
 	 */
 	protected void handleOutgoingMessages() {
-		// Check to make sure we have a client to send to.
-		boolean keepAlive = true;
-		if (!waitingList.isEmpty()) {
-			keepAlive = false;
-			System.out.println("Handling an outgoing message");
-			// Send out all of the message that have been added to the
-			// queue.
-			do {
-				Message msg = waitingList.remove();
-				boolean sentGood = sendMessage(msg);
-				keepAlive |= sentGood;
-				// Update the time until we terminate the client for inactivity.
+		// First finish whatever the socket could not take last time.
+		boolean keepAlive = connection.flush();
+		// Only gather more once the socket has taken all of that, and then only as
+		// much as one write can carry.
+		boolean room = keepAlive && !connection.hasPendingOutput();
+		// Pick up any mail stored after the mailbox was first opened.
+		if ((mail == null) && mailWaiting) {
+			mailWaiting = false;
+			mail = Prattle.openMailbox(name);
+		}
+		// Deliver the mail and replay the history first, in batches as the socket
+		// takes them.
+		while (room && catchingUp()) {
+			Message msg = (mail != null) ? mail.next() : replay.next();
+			if (msg == null) {
+				if (mail != null) {
+					mail = null;
+				} else if (replay.isWaiting()) {
+					// The journal will wake us once it has written the rest
+					break;
+				} else {
+					replay = null;
+				}
+			} else {
+				sendMessage(msg);
 				timer.updateAfterActivity();
+				room = connection.hasRoomForOutput();
+			}
+		}
+		// Send out the messages that have been added to the queue.
+		while (room && !catchingUp() && !waitingList.isEmpty()) {
+			Message msg = waitingList.poll();
+			sendMessage(msg);
+			// Update the time until we terminate the client for inactivity.
+			timer.updateAfterActivity();
+			room = connection.hasRoomForOutput();
+		}
+		// Hand everything gathered to the socket in as few writes as it will take.
+		if (keepAlive && connection.hasPendingOutput()) {
+			keepAlive = connection.flush();
+		}
+		if (!keepAlive && !terminate) {
+			ServerMetrics.clientDropped();
+			terminate = true;
+		}
+	}
+
+	/**
+	 * Return whether this client still has mail or history to catch up on before
+	 * it is sent the messages queued since it logged in.
+	 * 
+	 * @return True if there is mail or history left; false otherwise.
+	 */
+	private boolean catchingUp() {
+		return (mail != null) || (replay != null);
+	}
+
+	/**
+	 * Have this client run on the thread pool because its channel is ready or it has
+	 * messages waiting to be sent. Wake-ups that arrive while the client is already
+	 * queued or running are folded into that run. On threads of its own, the
+	 * client's writer is woken instead. This does nothing when the client is
+	 * polled at a fixed rate.
+	 */
+	void wakeUp() {
+		if (reactor != null) {
+			if (wakeups.getAndIncrement() == 0) {
+				dispatchedAt = System.nanoTime();
+				reactor.dispatch(this::runWhenWoken);
+			}
+		} else if (threaded) {
+			if (wakeups.getAndIncrement() == 0) {
+				dispatchedAt = System.nanoTime();
+			}
+			Thread target = writer;
+			if (target != null) {
+				LockSupport.unpark(target);
+			} else if (!terminate && timer.isBehind()) {
+				// Nobody logged in, so only closing the connection stops the reader waiting
+				abort();
+			}
+		}
+	}
 
-			} while (!waitingList.isEmpty());
+	/**
+	 * Run this client once on behalf of the wake-ups received so far. If more
+	 * arrived in the meantime, or it used up its budget with incoming messages
+	 * still waiting, the client goes to the back of the thread pool's queue rather
+	 * than running again straight away, so that a chatty client cannot starve the
+	 * others.
+	 */
+	private void runWhenWoken() {
+		// A woken client is late by however long it waited for a thread
+		ServerMetrics.recordSchedulingLag(System.nanoTime() - dispatchedAt);
+		int handled = wakeups.get();
+		run();
+		if (!terminate) {
+			// Messages left over from the last read will not make the channel fire
+			if (connection.hasBufferedMessages()) {
+				wakeups.incrementAndGet();
+			}
+			if (wakeups.addAndGet(-handled) != 0) {
+				dispatchedAt = System.nanoTime();
+				reactor.dispatch(this::runWhenWoken);
+			}
 		}
-		terminate |= !keepAlive;
+	}
+
+	/**
+	 * Return the number of messages waiting to be sent to this client.
+	 *
+	 * @return Number of queued messages.
+	 */
+	int getQueueDepth() {
+		return waitingList.size();
+	}
+
+	/**
+	 * Return the timer tracking how long this client has been inactive.
+	 *
+	 * @return The client's inactivity timer.
+	 */
+	ClientTimer getTimer() {
+		return timer;
+	}
+
+	/**
+	 * Have this client terminated because it cannot be kept up to date or has gone
+	 * away. On threads of its own, the connection is closed straight away as well,
+	 * since the writer may be stuck waiting for the client to read.
+	 */
+	private void abort() {
+		terminate = true;
+		if (threaded) {
+			connection.close();
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Run this client on threads of its own, which wait on its blocking connection
+	 * instead of being scheduled on the pool. A reader thread is started now; once
+	 * the client logs in, a writer thread is started to send its messages.
+	 */
+	void startThreads() {
+		threaded = true;
+		ConnectionThreads.start(this::readMessages, "prattle-reader");
+	}
+
+	/**
+	 * Body of the reader thread: wait for the client to log in, then handle every
+	 * message it sends until it quits, goes away or is terminated.
+	 */
+	private void readMessages() {
+		while (!terminate && !initialized && !connection.isEndOfStream()) {
+			checkForInitialization();
+		}
+		if (initialized && !terminate) {
+			writer = ConnectionThreads.start(this::writeMessages, "prattle-writer-" + name);
+			while (!terminate && !(connection.isEndOfStream() && !connection.hasBufferedMessages())) {
+				handleIncomingMessages();
+			}
+		}
+		terminate = true;
+		if (writer == null) {
+			terminateClient();
+		} else {
+			// The writer sends whatever is left, such as the reply to a quit
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Body of the writer thread: sleep until messages are queued for the client,
+	 * send them, and terminate the client once it is done.
+	 */
+	private void writeMessages() {
+		while (!terminate) {
+			if (wakeups.getAndSet(0) == 0) {
+				LockSupport.park(this);
+			} else {
+				ServerMetrics.recordSchedulingLag(System.nanoTime() - dispatchedAt);
+				handleOutgoingMessages();
+				if (timer.isBehind()) {
+					ChatLogger.error("Timing out or forcing off a user " + name);
+					abort();
+				}
+			}
+		}
+		handleOutgoingMessages();
+		terminateClient();
+	}
+
+	/**
+	 * Store the reactor which will run this client whenever it has work to do.
+	 *
+	 * @param clientReactor Reactor watching this client's channel.
+	 */
+	void setReactor(ClientReactor clientReactor) {
+		reactor = clientReactor;
+		connection.setReadyListener(this::wakeUp);
 	}
 
 	/**
@@ -295,9 +677,18 @@ public class ClientRunnable implements Runnable {
 	public void terminateClient() {
 		// Once the communication is done, close this connection.
 		connection.close();
+		// Nobody needs to watch for this client going idle any more.
+		timer.cancel();
 		// Remove the client from our client listing.
 		Prattle.removeClient(this);
+		// Keep whatever mail was not delivered for next time.
+		if (mail != null) {
+			mail.close();
+			mail = null;
+		}
 		// And remove the client from our client pool.
-		runnableMe.cancel(false);
+		if (runnableMe != null) {
+			runnableMe.cancel(false);
+		}
 	}
 }
\ No newline at end of file
@@ -1,10 +1,14 @@
 package edu.northeastern.ccs.im.server;
 
-import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Class that represents the calendar used by the ClientRunnable.
- * 
+ * Class that represents the timer used by the ClientRunnable to find out when
+ * its client has been inactive for too long. The deadline is a primitive
+ * reading of the monotonic clock, so noting activity is a single write and
+ * never allocates. The server's TimingWheel watches every timer and reports
+ * the ones which run out, so idle clients are found without checking each one.
+ *
  * @author Riya Nadkarni
  * @version 12-27-2018
  */
@@ -17,19 +21,41 @@ public class ClientTimer {
 
   /**
    * Number of milliseconds after which we terminate a client due to inactivity.
-   * This is currently equal to 5 hours.
+   * This is currently equal to 10 minutes.
    */
   private static final long TERMINATE_AFTER_INACTIVE_INITIAL_IN_MS = 600000;
 
-  /** Time at which the client should be terminated due to lack of activity. */
-  private GregorianCalendar calendar;
+  /** Time, from System.nanoTime, at which the client should be terminated. */
+  private volatile long deadline;
+
+  /** Whether the client is gone, so the timer no longer needs watching. */
+  private volatile boolean cancelled;
+
+  /** What to do when the timer runs out; null to do nothing. */
+  private final Runnable onExpiry;
+
+  /** Next timer in the same slot of the timing wheel; only used by the wheel. */
+  ClientTimer nextInSlot;
+
+  /** Tick of the timing wheel the timer was placed for; only used by the wheel. */
+  long dueTick;
 
   /**
    * Constructor for the timer.
    */
   public ClientTimer() {
-    calendar = new GregorianCalendar();
-    calendar.setTimeInMillis(calendar.getTimeInMillis() + TERMINATE_AFTER_INACTIVE_INITIAL_IN_MS);
+    this(null);
+  }
+
+  /**
+   * Constructor for a timer which does something when it runs out.
+   *
+   * @param expiry What to do when the timing wheel finds the timer has run out
+   *               (may be null)
+   */
+  ClientTimer(Runnable expiry) {
+    onExpiry = expiry;
+    expireAfter(TimeUnit.MILLISECONDS.toNanos(TERMINATE_AFTER_INACTIVE_INITIAL_IN_MS));
   }
 
   /**
@@ -37,8 +63,7 @@ public class ClientTimer {
    * terminated for inactivity.
    */
   public void updateAfterInitialization() {
-    calendar.setTimeInMillis(
-        new GregorianCalendar().getTimeInMillis() + TERMINATE_AFTER_INACTIVE_INITIAL_IN_MS);
+    expireAfter(TimeUnit.MILLISECONDS.toNanos(TERMINATE_AFTER_INACTIVE_INITIAL_IN_MS));
   }
 
   /**
@@ -46,15 +71,58 @@ public class ClientTimer {
    * terminated for inactivity.
    */
   public void updateAfterActivity() {
-    calendar.setTimeInMillis(
-        new GregorianCalendar().getTimeInMillis() + TERMINATE_AFTER_INACTIVE_BUT_LOGGEDIN_IN_MS);
+    expireAfter(TimeUnit.MILLISECONDS.toNanos(TERMINATE_AFTER_INACTIVE_BUT_LOGGEDIN_IN_MS));
   }
-  
+
   /**
-   * Checks whether the calendar represents a time before the current time.
-   * @return    true if the time passed in is later than the current value of calendar, false otherwise.
+   * Checks whether the deadline has passed.
+   * @return    true if the client has been inactive for too long, false otherwise.
    */
   public boolean isBehind () {
-    return calendar.before(new GregorianCalendar());
+    return System.nanoTime() - deadline > 0;
+  }
+
+  /**
+   * Sets the deadline the given time from now.
+   *
+   * @param nanos time until the client is terminated, in nanoseconds
+   */
+  void expireAfter(long nanos) {
+    deadline = System.nanoTime() + nanos;
+  }
+
+  /**
+   * Returns the time at which the client should be terminated.
+   *
+   * @return the deadline, from System.nanoTime
+   */
+  long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * Stops the timer because its client has gone; the wheel drops it next time
+   * it comes across it.
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Returns whether the timer has been stopped.
+   *
+   * @return true if the timer no longer needs watching, false otherwise
+   */
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Does whatever should happen when the timer runs out.
+   */
+  void expire() {
+    if (onExpiry != null) {
+      onExpiry.run();
+    }
   }
 }
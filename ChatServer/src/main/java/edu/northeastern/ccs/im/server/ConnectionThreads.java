@@ -0,0 +1,81 @@
+package edu.northeastern.ccs.im.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import edu.northeastern.ccs.im.ChatLogger;
+
+/**
+ * Starts the threads dedicated to single connections in virtual mode. On a JDK
+ * with virtual threads (21 and later, or 19 and 20 with preview features
+ * enabled) each is a virtual thread, so a blocked connection costs a few
+ * hundred bytes of heap rather than a stack. The server is built for Java 8,
+ * so virtual threads are found by reflection; on older JDKs ordinary daemon
+ * threads are started instead, which works the same way but limits how many
+ * connections the machine can hold.
+ */
+final class ConnectionThreads {
+
+	/** Thread.startVirtualThread, or null when virtual threads are not available. */
+	private static final Method START_VIRTUAL = findStartVirtual();
+
+	/**
+	 * Private constructor to prevent anyone from creating one of these.
+	 */
+	private ConnectionThreads() {
+		/* does nothing. */
+	}
+
+	/**
+	 * Return whether connections get virtual threads.
+	 *
+	 * @return True if virtual threads are used; false if platform threads are.
+	 */
+	static boolean isVirtual() {
+		return START_VIRTUAL != null;
+	}
+
+	/**
+	 * Start a thread running the given task.
+	 *
+	 * @param task Work the thread does.
+	 * @param name Name of the thread.
+	 * @return The thread, already started.
+	 */
+	static Thread start(Runnable task, String name) {
+		Thread result = null;
+		if (START_VIRTUAL != null) {
+			try {
+				result = (Thread) START_VIRTUAL.invoke(null, task);
+				result.setName(name);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				ChatLogger.error("Could not start a virtual thread: " + e.toString());
+			}
+		}
+		if (result == null) {
+			result = new Thread(task, name);
+			result.setDaemon(true);
+			result.start();
+		}
+		return result;
+	}
+
+	/**
+	 * Find the method starting a virtual thread, making sure it actually works.
+	 *
+	 * @return The method, or null if this JDK cannot start virtual threads.
+	 */
+	private static Method findStartVirtual() {
+		try {
+			Method method = Thread.class.getMethod("startVirtualThread", Runnable.class);
+			// Without preview features enabled, JDK 19 and 20 refuse to start one
+			method.invoke(null, (Runnable) () -> {
+				/* does nothing. */
+			});
+			return method;
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			ChatLogger.warning("Virtual threads are not available; using platform threads instead.");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package edu.northeastern.ccs.im.server;
+
+/**
+ * Enumeration of the different ways in which the server can execute the
+ * ClientRunnable instances of its clients.
+ */
+public enum ExecutionMode {
+	/**
+	 * Every client is polled by the thread pool at a fixed rate, whether or not
+	 * it has anything to do.
+	 */
+	SCHEDULED("scheduled"),
+	/**
+	 * Clients are run on the thread pool only when their channel becomes ready
+	 * or when messages are queued up for them.
+	 */
+	REACTOR("reactor"),
+	/**
+	 * Every client gets threads of its own, virtual ones where the JDK has them,
+	 * which wait on its connection instead of sharing the thread pool.
+	 */
+	VIRTUAL("virtual");
+
+	/** Store the name used to select this mode. */
+	private String propertyValue;
+
+	/**
+	 * Define the execution mode and specify the name used to select it.
+	 *
+	 * @param value Name used to select this mode, as a String.
+	 */
+	private ExecutionMode(String value) {
+		propertyValue = value;
+	}
+
+	/**
+	 * Find the execution mode selected by the given name. Unknown or missing names
+	 * select the scheduled mode.
+	 *
+	 * @param value Name of the mode that was requested (may be null)
+	 * @return The matching execution mode.
+	 */
+	public static ExecutionMode fromName(String value) {
+		ExecutionMode result = SCHEDULED;
+		for (ExecutionMode mode : values()) {
+			if (mode.propertyValue.equalsIgnoreCase(value)) {
+				result = mode;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return a representation of this mode as a String.
+	 *
+	 * @return Name used to select this mode.
+	 */
+	@Override
+	public String toString() {
+		return propertyValue;
+	}
+}
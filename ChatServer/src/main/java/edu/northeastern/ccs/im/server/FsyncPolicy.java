@@ -0,0 +1,60 @@
+package edu.northeastern.ccs.im.server;
+
+/**
+ * Enumeration of how often the message journal forces what it has written
+ * out to the disk. Whatever the policy, a segment is forced when it is full
+ * and when the journal is closed.
+ */
+public enum FsyncPolicy {
+	/**
+	 * Force the journal after every batch the writer thread commits, so no
+	 * message the writer has handled is lost if the machine crashes.
+	 */
+	ALWAYS("always"),
+	/**
+	 * Force the journal at most once per interval; a crash can lose the messages
+	 * written since the last force.
+	 */
+	INTERVAL("interval"),
+	/** Leave it to the operating system to write the journal out. */
+	NEVER("never");
+
+	/** Store the name used to select this policy. */
+	private String propertyValue;
+
+	/**
+	 * Define the policy and specify the name used to select it.
+	 *
+	 * @param value Name used to select this policy, as a String.
+	 */
+	private FsyncPolicy(String value) {
+		propertyValue = value;
+	}
+
+	/**
+	 * Find the policy selected by the given name. Unknown or missing names select
+	 * forcing the journal once per interval.
+	 *
+	 * @param value Name of the policy that was requested (may be null)
+	 * @return The matching policy.
+	 */
+	public static FsyncPolicy fromName(String value) {
+		FsyncPolicy result = INTERVAL;
+		for (FsyncPolicy policy : values()) {
+			if (policy.propertyValue.equalsIgnoreCase(value)) {
+				result = policy;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return a representation of this policy as a String.
+	 *
+	 * @return Name used to select this policy.
+	 */
+	@Override
+	public String toString() {
+		return propertyValue;
+	}
+}
@@ -0,0 +1,92 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the named groups clients have joined. The server keeps the set
+ * of members of every group, so a message sent to a group only touches the
+ * clients in it rather than everyone on the system. A group exists while it
+ * has at least one member.
+ *
+ * Group names are matched ignoring case, like client names.
+ */
+class GroupRegistry {
+
+	/** Members of each group, by group name. */
+	private final Map<String, Set<ClientRunnable>> groups;
+
+	/**
+	 * Create a new registry without any groups.
+	 */
+	GroupRegistry() {
+		groups = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Add a client to a group, creating the group if needed.
+	 *
+	 * @param group  Name of the group.
+	 * @param client Client joining the group.
+	 */
+	void join(String group, ClientRunnable client) {
+		// Add inside compute so the group cannot be dropped between lookup and add
+		groups.compute(key(group), (k, members) -> {
+			Set<ClientRunnable> result = (members == null) ? ConcurrentHashMap.newKeySet() : members;
+			result.add(client);
+			return result;
+		});
+	}
+
+	/**
+	 * Remove a client from a group, dropping the group once it is empty.
+	 *
+	 * @param group  Name of the group.
+	 * @param client Client leaving the group.
+	 * @return True if the client was a member of the group; false otherwise.
+	 */
+	boolean leave(String group, ClientRunnable client) {
+		boolean[] removed = new boolean[1];
+		groups.computeIfPresent(key(group), (k, members) -> {
+			removed[0] = members.remove(client);
+			return members.isEmpty() ? null : members;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Return whether a client is a member of a group.
+	 *
+	 * @param group  Name of the group.
+	 * @param client Client to look for.
+	 * @return True if the client is a member; false otherwise.
+	 */
+	boolean isMember(String group, ClientRunnable client) {
+		Set<ClientRunnable> members = groups.get(key(group));
+		return (members != null) && members.contains(client);
+	}
+
+	/**
+	 * Return a weakly consistent view of the members of a group.
+	 *
+	 * @param group Name of the group.
+	 * @return Members of the group; empty if there is no such group.
+	 */
+	Set<ClientRunnable> members(String group) {
+		Set<ClientRunnable> members = groups.get(key(group));
+		return (members == null) ? Collections.<ClientRunnable>emptySet() : members;
+	}
+
+	/**
+	 * Turn a group name into the key under which it is stored.
+	 *
+	 * @param group Name of a group.
+	 * @return Key for the name.
+	 */
+	static String key(String group) {
+		return group.toLowerCase(Locale.ROOT);
+	}
+}
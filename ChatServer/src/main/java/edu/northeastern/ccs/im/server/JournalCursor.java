@@ -0,0 +1,158 @@
+package edu.northeastern.ccs.im.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import edu.northeastern.ccs.im.ChatLogger;
+
+/**
+ * Reads the records of the message journal in order, starting with a given
+ * sequence number and skipping those written before a given time. Segments are
+ * mapped read-only one at a time, and each segment's sparse index is used to
+ * jump close to the first record wanted. Records are only read once the
+ * journal's writer has finished them, so a cursor can follow the journal while
+ * it is being written.
+ *
+ * A cursor is used by a single thread.
+ */
+final class JournalCursor {
+
+	/** Journal being read. */
+	private final MessageJournal journal;
+
+	/** Sequence number of the first record wanted. */
+	private final long from;
+
+	/** Time of the oldest record wanted, in milliseconds. */
+	private final long cutoff;
+
+	/** Segment being read; null before the first and after the last. */
+	private JournalSegment segment;
+
+	/** Mapping of the segment being read, positioned at the next record. */
+	private MappedByteBuffer buffer;
+
+	/** Sequence number of the record at the buffer's position. */
+	private long position;
+
+	/** Sequence number of the current record. */
+	private long sequence;
+
+	/** Time at which the current record was written. */
+	private long time;
+
+	/** Bytes of the current record's message. */
+	private ByteBuffer frame;
+
+	/**
+	 * Create a cursor positioned before the first record wanted.
+	 *
+	 * @param source  Journal to be read.
+	 * @param first   Sequence number of the first record wanted.
+	 * @param minTime Time of the oldest record wanted, in milliseconds.
+	 */
+	JournalCursor(MessageJournal source, long first, long minTime) {
+		journal = source;
+		from = first;
+		cutoff = minTime;
+		Map.Entry<Long, JournalSegment> entry = journal.getSegments().floorEntry(first);
+		if (entry == null) {
+			entry = journal.getSegments().firstEntry();
+		}
+		segment = (entry == null) ? null : entry.getValue();
+	}
+
+	/**
+	 * Move to the next record wanted.
+	 *
+	 * @return True if there is such a record; false if the cursor has caught up
+	 *         with the writer or the journal cannot be read.
+	 */
+	boolean next() {
+		while (segment != null) {
+			if ((buffer == null) && !map()) {
+				return false;
+			}
+			if (position >= journal.getNextSequence()) {
+				// Everything after this is still being written
+				return false;
+			}
+			int start = buffer.position();
+			int length = (buffer.remaining() >= MessageJournal.HEADER_BYTES) ? buffer.getInt(start) : 0;
+			if (length <= 0) {
+				// This is the end of the segment, so carry on with the next one
+				Map.Entry<Long, JournalSegment> entry = journal.getSegments().higherEntry(segment.getFirst());
+				segment = (entry == null) ? null : entry.getValue();
+				buffer = null;
+				continue;
+			}
+			time = buffer.getLong(start + MessageJournal.TIME_OFFSET);
+			ByteBuffer view = buffer.duplicate();
+			view.limit(start + MessageJournal.HEADER_BYTES + length).position(start + MessageJournal.HEADER_BYTES);
+			frame = view.slice().asReadOnlyBuffer();
+			buffer.position(start + MessageJournal.HEADER_BYTES + length);
+			sequence = position;
+			position++;
+			if ((sequence >= from) && (time >= cutoff)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return the sequence number of the current record.
+	 *
+	 * @return Sequence number of the record.
+	 */
+	long sequence() {
+		return sequence;
+	}
+
+	/**
+	 * Return the time at which the current record was written.
+	 *
+	 * @return Time in milliseconds.
+	 */
+	long time() {
+		return time;
+	}
+
+	/**
+	 * Return the bytes the current record's message is sent over the network as.
+	 *
+	 * @return Read-only buffer positioned at the start of the message's bytes.
+	 */
+	ByteBuffer frame() {
+		return frame.duplicate();
+	}
+
+	/**
+	 * Map the current segment and move to the indexed record closest to the first
+	 * record wanted.
+	 *
+	 * @return True if the segment was mapped; false if it could not be read.
+	 */
+	private boolean map() {
+		try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid once the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			ChatLogger.warning("Could not read the message journal: " + e.toString());
+			segment = null;
+			return false;
+		}
+		int entry = segment.find(from, cutoff);
+		if (entry < 0) {
+			position = segment.getFirst();
+		} else {
+			position = segment.sequenceAt(entry);
+			buffer.position(segment.offsetAt(entry));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,213 @@
+package edu.northeastern.ccs.im.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Sparse index of one segment of the message journal. Every INDEX_INTERVAL-th
+ * record gets an entry holding its sequence number, its offset within the
+ * segment and the time it was written, so a reader can jump close to any
+ * sequence number or time and only scan a few records from there.
+ *
+ * Only the journal's writer thread adds entries; any number of readers may
+ * look them up at the same time. Once a segment is full, its index is saved
+ * next to it so it does not have to be rebuilt when the journal is opened
+ * again.
+ */
+final class JournalSegment {
+
+	/** Number of records between two entries of the index. */
+	static final int INDEX_INTERVAL = 256;
+
+	/** Suffix of the names of index files. */
+	static final String INDEX_SUFFIX = ".idx";
+
+	/** Number of entries the index starts out with room for. */
+	private static final int INITIAL_ENTRIES = 64;
+
+	/** Path of the segment file. */
+	private final Path path;
+
+	/** Sequence number of the first record in the segment. */
+	private final long first;
+
+	/** Sequence number of each indexed record. */
+	private long[] sequences;
+
+	/** Offset of each indexed record within the segment. */
+	private int[] offsets;
+
+	/** Time at which each indexed record was written. */
+	private long[] times;
+
+	/** Number of entries in the index; written after the arrays, read before. */
+	private volatile int count;
+
+	/**
+	 * Create an empty index for a segment.
+	 *
+	 * @param file  Path of the segment file.
+	 * @param start Sequence number of the first record in the segment.
+	 */
+	JournalSegment(Path file, long start) {
+		path = file;
+		first = start;
+		sequences = new long[INITIAL_ENTRIES];
+		offsets = new int[INITIAL_ENTRIES];
+		times = new long[INITIAL_ENTRIES];
+	}
+
+	/**
+	 * Return the path of the segment file.
+	 *
+	 * @return Path of the segment.
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Return the sequence number of the first record in the segment.
+	 *
+	 * @return Sequence number of the first record.
+	 */
+	long getFirst() {
+		return first;
+	}
+
+	/**
+	 * Note that a record has been written, adding it to the index if it is one of
+	 * the records which are indexed. Only the writer may call this.
+	 *
+	 * @param sequence Sequence number of the record.
+	 * @param offset   Offset of the record within the segment.
+	 * @param time     Time at which the record was written.
+	 */
+	void add(long sequence, int offset, long time) {
+		if ((sequence - first) % INDEX_INTERVAL != 0) {
+			return;
+		}
+		int size = count;
+		if (size == sequences.length) {
+			sequences = Arrays.copyOf(sequences, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+			times = Arrays.copyOf(times, size * 2);
+		}
+		sequences[size] = sequence;
+		offsets[size] = offset;
+		times[size] = time;
+		// Publish the entry to the readers
+		count = size + 1;
+	}
+
+	/**
+	 * Find the last indexed record at or before the given sequence number which
+	 * was written before the given time. Starting from there and skipping the
+	 * records which are too early or too old finds the first record wanted.
+	 *
+	 * @param sequence Sequence number of the first record wanted.
+	 * @param cutoff   Time of the oldest record wanted, in milliseconds.
+	 * @return Index of the entry, or -1 to start at the beginning of the segment.
+	 */
+	int find(long sequence, long cutoff) {
+		int size = count;
+		long[] seqs = sequences;
+		long[] stamps = times;
+		int result = -1;
+		for (int lo = 0, hi = size - 1; lo <= hi;) {
+			int mid = (lo + hi) >>> 1;
+			if (seqs[mid] <= sequence) {
+				result = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		// Times only ever go up, so skip ahead past the entries which are too old
+		while ((result + 1 < size) && (stamps[result + 1] < cutoff)) {
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the sequence number of an indexed record.
+	 *
+	 * @param entry Index of the entry, as returned by find.
+	 * @return Sequence number of the record.
+	 */
+	long sequenceAt(int entry) {
+		return sequences[entry];
+	}
+
+	/**
+	 * Return the offset of an indexed record within the segment.
+	 *
+	 * @param entry Index of the entry, as returned by find.
+	 * @return Offset of the record.
+	 */
+	int offsetAt(int entry) {
+		return offsets[entry];
+	}
+
+	/**
+	 * Save the index next to its segment.
+	 *
+	 * @throws IOException Exception thrown if the index cannot be written.
+	 */
+	void save() throws IOException {
+		int size = count;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(indexPath(path))))) {
+			for (int i = 0; i < size; i++) {
+				out.writeLong(sequences[i]);
+				out.writeInt(offsets[i]);
+				out.writeLong(times[i]);
+			}
+		}
+	}
+
+	/**
+	 * Load the saved index of a segment.
+	 *
+	 * @param file  Path of the segment file.
+	 * @param start Sequence number of the first record in the segment.
+	 * @return The index, or null if none was saved.
+	 * @throws IOException Exception thrown if the index cannot be read.
+	 */
+	static JournalSegment load(Path file, long start) throws IOException {
+		Path saved = indexPath(file);
+		if (!Files.exists(saved)) {
+			return null;
+		}
+		JournalSegment result = new JournalSegment(file, start);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(saved)))) {
+			while (true) {
+				long sequence = in.readLong();
+				int offset = in.readInt();
+				result.add(sequence, offset, in.readLong());
+			}
+		} catch (EOFException e) {
+			// This is how we know we have read all of the entries.
+		}
+		return result;
+	}
+
+	/**
+	 * Return the path of the index saved for a segment.
+	 *
+	 * @param file Path of the segment file.
+	 * @return Path of its index file.
+	 */
+	private static Path indexPath(Path file) {
+		String name = file.getFileName().toString();
+		return file.resolveSibling(name.substring(0, name.lastIndexOf('.')) + INDEX_SUFFIX);
+	}
+}
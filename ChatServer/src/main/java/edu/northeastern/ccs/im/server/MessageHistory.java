@@ -0,0 +1,272 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.Message;
+
+/**
+ * Recent history of the messages broadcast to everyone, so that a client who
+ * has just logged in can be shown what was said before it arrived. The most
+ * recent messages are kept in a fixed-size ring, already encoded, and replayed
+ * straight from there; every client replaying them shares the same Message
+ * objects and bytes. Older history comes from the message journal, when there
+ * is one, whose sequence numbers are the same as the ring's.
+ *
+ * Recording a message takes a short lock, only to give it its sequence number
+ * and slot in the ring. The journal is handed the message once the lock is
+ * released, with that sequence number, so a journal that has fallen behind
+ * never holds up the other threads broadcasting. Replaying never takes the
+ * lock: a Replay walks the ring on its own and falls back to the journal for
+ * whatever has been overwritten while it was catching up.
+ */
+class MessageHistory {
+
+	/** Messages recently broadcast, each at the slot given by its sequence number. */
+	private final AtomicReferenceArray<Entry> slots;
+
+	/** Mask turning a sequence number into a slot index. */
+	private final int mask;
+
+	/** Journal holding the messages no longer in the ring; null if there is none. */
+	private final MessageJournal journal;
+
+	/** Sequence number of the first message recorded since the server started. */
+	private final long base;
+
+	/** Sequence number the next message recorded will have. */
+	private volatile long next;
+
+	/**
+	 * Create a history with nothing recorded yet.
+	 *
+	 * @param capacity Least number of messages kept in memory; rounded up to a
+	 *                 power of two.
+	 * @param disk     Journal holding older messages (may be null)
+	 */
+	MessageHistory(int capacity, MessageJournal disk) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+		journal = disk;
+		base = (disk == null) ? 0 : disk.getNextSequence();
+		next = base;
+	}
+
+	/**
+	 * Record a message which is being broadcast, writing it to the journal too if
+	 * there is one.
+	 *
+	 * @param msg Message which is being broadcast.
+	 * @return Sequence number given to the message.
+	 */
+	long record(Message msg) {
+		long now = System.currentTimeMillis();
+		long sequence;
+		synchronized (this) {
+			sequence = next;
+			slots.set((int) sequence & mask, new Entry(sequence, now, msg));
+			// Publish the message to the replays
+			next = sequence + 1;
+		}
+		if (journal != null) {
+			journal.append(sequence, msg);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Start replaying the most recent messages.
+	 *
+	 * @param count  Most messages to replay.
+	 * @param maxAge Oldest message to replay, in milliseconds; 0 to replay
+	 *               messages of any age.
+	 * @return Replay of the messages, or null if there is nothing to replay.
+	 */
+	Replay replay(int count, long maxAge) {
+		long end = next;
+		long start = Math.max(0, end - count);
+		long cutoff = (maxAge > 0) ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+		return (start < end) ? new Replay(start, end, cutoff) : null;
+	}
+
+	/**
+	 * Return the sequence number of the oldest message which may still be in the
+	 * ring.
+	 *
+	 * @return Sequence number of the oldest message in memory.
+	 */
+	private long oldestInMemory() {
+		return Math.max(base, next - slots.length());
+	}
+
+	/**
+	 * A message in the ring, with its sequence number and the time it was sent.
+	 */
+	private static final class Entry {
+		/** Sequence number of the message. */
+		private final long sequence;
+
+		/** Time at which the message was sent, in milliseconds. */
+		private final long time;
+
+		/** The message itself. */
+		private final Message message;
+
+		/**
+		 * Create a new entry.
+		 *
+		 * @param seq  Sequence number of the message.
+		 * @param when Time at which the message was sent.
+		 * @param msg  The message itself.
+		 */
+		private Entry(long seq, long when, Message msg) {
+			sequence = seq;
+			time = when;
+			message = msg;
+		}
+	}
+
+	/**
+	 * Cursor over the messages being replayed to one client, oldest first. It
+	 * only holds its position, so a client that is slow to take them costs no
+	 * more memory than a fast one. Used by a single thread.
+	 */
+	class Replay {
+		/** Sequence number of the next message to replay. */
+		private long position;
+
+		/** Sequence number following the last message to replay. */
+		private final long end;
+
+		/** Time of the oldest message to replay, in milliseconds. */
+		private final long cutoff;
+
+		/** Cursor reading the messages no longer in memory; null when not needed. */
+		private JournalCursor disk;
+
+		/** Action run when the journal has written more; null if there is none. */
+		private Runnable wakeUp;
+
+		/** Whether the last call to next stopped to wait for the journal. */
+		private boolean waiting;
+
+		/**
+		 * Create a replay of the given messages.
+		 *
+		 * @param first   Sequence number of the first message to replay.
+		 * @param last    Sequence number following the last message to replay.
+		 * @param minTime Time of the oldest message to replay, in milliseconds.
+		 */
+		private Replay(long first, long last, long minTime) {
+			position = first;
+			end = last;
+			cutoff = minTime;
+		}
+
+		/**
+		 * Return the sequence number following the last message to replay. Any
+		 * message broadcast with a lower one is part of the replay.
+		 *
+		 * @return Sequence number at which the replay ends.
+		 */
+		long getEnd() {
+			return end;
+		}
+
+		/**
+		 * Have the given action run when the journal has written more, after next
+		 * has stopped to wait for it. The action is run on the journal's writer
+		 * thread, so it must be quick and must not block.
+		 *
+		 * @param action Action to run, such as waking up the client replayed to.
+		 */
+		void setWakeUp(Runnable action) {
+			wakeUp = action;
+		}
+
+		/**
+		 * Return whether the last call to next returned null because the next
+		 * message has not been written to the journal yet, rather than because the
+		 * replay is over. Calling next again later carries on from that message.
+		 *
+		 * @return True if the replay is waiting for the journal; false otherwise.
+		 */
+		boolean isWaiting() {
+			return waiting;
+		}
+
+		/**
+		 * Return the next message to replay. This never waits: null is returned
+		 * both once the replay is over and while the next message is waiting for
+		 * the journal, which isWaiting tells apart.
+		 *
+		 * @return The next message, or null if there is none to replay now.
+		 */
+		Message next() {
+			waiting = false;
+			while (position < end) {
+				Entry entry = slots.get((int) position & mask);
+				if ((entry != null) && (entry.sequence == position)) {
+					// Once we have caught up with the ring we can stay there
+					disk = null;
+					position++;
+					if (entry.time >= cutoff) {
+						return entry.message;
+					}
+				} else {
+					Message msg = readDisk();
+					if ((msg != null) || waiting) {
+						return msg;
+					}
+				}
+			}
+			disk = null;
+			return null;
+		}
+
+		/**
+		 * Read the next message from the journal because it is no longer in memory.
+		 * If the journal has not written the message yet, stop to wait for it
+		 * without moving on. If it is not in the journal either, skip to the
+		 * messages which can still be found, saying so when the journal should have
+		 * had them.
+		 *
+		 * @return The message read, or null if there was none.
+		 */
+		private Message readDisk() {
+			boolean lost = false;
+			if (journal != null) {
+				if (!journal.isWritten(position, wakeUp)) {
+					// Look again once the writer has caught up
+					waiting = true;
+					return null;
+				}
+				if (disk == null) {
+					disk = journal.cursor(position, cutoff);
+				}
+				if (disk.next()) {
+					position = Math.min(disk.sequence(), end);
+					if (position < end) {
+						position++;
+						Message msg = Message.fromEncoded(disk.frame());
+						if (msg != null) {
+							return msg;
+						}
+					}
+					return null;
+				}
+				disk = null;
+				lost = journal.getNextSequence() <= position;
+			}
+			// The message was lost, so carry on with whatever is left in memory
+			long resume = Math.max(position + 1, oldestInMemory());
+			if (lost) {
+				ChatLogger.warning("Could not replay messages " + position + " to " + (resume - 1)
+						+ ", which are in neither the history nor the journal.");
+			}
+			position = resume;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,614 @@
+package edu.northeastern.ccs.im.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.Message;
+import edu.northeastern.ccs.im.WireFormat;
+import edu.northeastern.ccs.im.RingBuffer;
+
+/**
+ * Append-only journal of the messages sent through the server, so they outlive
+ * a restart. Messages are handed to a writer thread through a lock-free ring
+ * buffer; the thread sending a message never touches the disk. Each message
+ * comes with the sequence number it is to be written under, and the writer
+ * puts back in order any that were handed over out of order by threads racing
+ * each other. The writer copies them into memory-mapped segment files in
+ * batches and forces each batch out according to its FsyncPolicy, so a single
+ * force commits every message in the batch.
+ *
+ * Each record is a 16 byte header -- the length of the message's bytes, a
+ * CRC32 of the rest of the record and the time it was written in
+ * milliseconds -- followed by the bytes the message is sent over the network
+ * as in the binary framing, which keeps text outside US-ASCII. Records written
+ * in the text framing by earlier versions are still read back. A record with a
+ * length of zero marks the end of a segment. Segments are named after the
+ * sequence number of their first record and a new one is started when the
+ * current one is full. When the journal is opened again, the last segment is
+ * checked record by record and writing carries on after the last complete one.
+ *
+ * Should the writer stop, e.g. because the disk is full, the journal is turned
+ * off and messages are no longer journaled, rather than leaving the threads
+ * sending them waiting on a ring buffer that is never drained.
+ *
+ * Each segment has a sparse JournalSegment index, and any number of
+ * JournalCursors can read the journal while it is being written.
+ */
+class MessageJournal {
+
+	/** Prefix of the names of segment files. */
+	static final String SEGMENT_PREFIX = "journal-";
+
+	/** Suffix of the names of segment files. */
+	static final String SEGMENT_SUFFIX = ".seg";
+
+	/** Number of bytes in front of each message's bytes. */
+	static final int HEADER_BYTES = 16;
+
+	/** Offset of the checksum within a record. */
+	private static final int CRC_OFFSET = 4;
+
+	/** Offset of the time stamp within a record. */
+	static final int TIME_OFFSET = 8;
+
+	/** Smallest segment size we allow, so that any message fits in a segment. */
+	private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	/** Most messages committed in a single batch. */
+	private static final int BATCH_SIZE = 1024;
+
+	/** How long the writer sleeps when there is nothing to write. */
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** How long a sender sleeps before looking again for room or for the writer. */
+	private static final long SENDER_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/** Directory holding the segment files. */
+	private final Path directory;
+
+	/** Size of each segment file in bytes. */
+	private final int segmentBytes;
+
+	/** How often the journal is forced out to the disk. */
+	private final FsyncPolicy policy;
+
+	/** Least time between forces when forcing once per interval. */
+	private final long intervalNanos;
+
+	/** Messages waiting to be written. */
+	private final RingBuffer<Pending> ring;
+
+	/** Messages taken from the ring ahead of one still to come; writer only. */
+	private final PriorityQueue<Pending> early;
+
+	/** Number of messages accepted into the ring buffer. */
+	private final AtomicLong accepted;
+
+	/** Number of accepted messages the writer has written. */
+	private volatile long written;
+
+	/** Thread writing the messages. */
+	private final Thread writer;
+
+	/** Whether the writer should keep running. */
+	private volatile boolean running;
+
+	/** Whether the writer has stopped, so that messages are dropped instead. */
+	private volatile boolean disabled;
+
+	/** Whether the writer has finished, for good or because it failed. */
+	private volatile boolean stopped;
+
+	/** Actions to run once more records have been written, for readers ahead of the writer. */
+	private final Queue<Runnable> waiters;
+
+	/** Index of every segment, by the sequence number of its first record. */
+	private final ConcurrentNavigableMap<Long, JournalSegment> segments;
+
+	/** Checksum used by the writer thread. */
+	private final CRC32 crc;
+
+	/** File holding the segment being written. */
+	private FileChannel channel;
+
+	/** Mapping of the segment being written, positioned after its last record. */
+	private MappedByteBuffer segment;
+
+	/** Index of the segment being written. */
+	private JournalSegment index;
+
+	/** Sequence number the next record written will have. */
+	private volatile long nextSequence;
+
+	/** Whether records have been written since the journal was last forced. */
+	private boolean dirty;
+
+	/** When the journal was last forced. */
+	private long lastForce;
+
+	/**
+	 * Open the journal in the given directory, creating the directory if needed,
+	 * and start its writer thread.
+	 *
+	 * @param dir       Directory holding the segment files.
+	 * @param size      Size of each segment file in bytes.
+	 * @param whenForce How often the journal is forced out to the disk.
+	 * @param interval  Least time between forces, in milliseconds, when forcing
+	 *                  once per interval.
+	 * @param capacity  Number of messages that may be waiting for the writer.
+	 * @throws IOException Exception thrown if the journal cannot be opened.
+	 */
+	MessageJournal(Path dir, int size, FsyncPolicy whenForce, long interval, int capacity) throws IOException {
+		directory = dir;
+		segmentBytes = Math.max(MIN_SEGMENT_BYTES, size);
+		policy = whenForce;
+		intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		ring = new RingBuffer<>(capacity);
+		early = new PriorityQueue<>();
+		accepted = new AtomicLong();
+		crc = new CRC32();
+		segments = new ConcurrentSkipListMap<>();
+		waiters = new ConcurrentLinkedQueue<>();
+		Files.createDirectories(directory);
+		recover();
+		lastForce = System.nanoTime();
+		running = true;
+		writer = new Thread(this::writeMessages, "prattle-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Hand a message to the writer thread. Every sequence number from the one the
+	 * journal was opened at must be appended exactly once, but not necessarily in
+	 * order: the writer holds on to a message until those before it have arrived.
+	 * The caller only waits if the writer has fallen so far behind that the ring
+	 * buffer is full, and never once the writer has stopped. It sleeps while it
+	 * waits, so a slow disk holds up the broadcasting threads without also
+	 * keeping their CPUs busy. A message cannot be dropped instead: the writer
+	 * would hold every later one back waiting for it.
+	 *
+	 * @param sequence Sequence number the message is to be written under.
+	 * @param msg      Message to be written to the journal.
+	 * @return True if the message will be written; false if the journal is off.
+	 */
+	boolean append(long sequence, Message msg) {
+		// Encode the message now so the writer shares the same bytes
+		msg.getEncoded(WireFormat.BINARY);
+		Pending pending = new Pending(sequence, msg);
+		while (!disabled && !ring.offer(pending)) {
+			if (!writer.isAlive()) {
+				disable();
+			} else {
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(this, SENDER_WAIT_NANOS);
+			}
+		}
+		if (disabled) {
+			return false;
+		}
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Turn the journal off once its writer has stopped, saying so only once.
+	 */
+	private synchronized void disable() {
+		if (!disabled) {
+			disabled = true;
+			ChatLogger.error("The message journal writer has stopped; messages are no longer journaled.");
+		}
+	}
+
+	/**
+	 * Return whether the journal has been turned off because its writer stopped.
+	 *
+	 * @return True if messages are being dropped; false otherwise.
+	 */
+	boolean isDisabled() {
+		return disabled;
+	}
+
+	/**
+	 * Wait until every message appended so far has been written to its segment.
+	 */
+	void flush() {
+		long target = accepted.get();
+		while (writer.isAlive() && (written < target)) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, SENDER_WAIT_NANOS);
+		}
+	}
+
+	/**
+	 * Return whether the record with the given sequence number has been written,
+	 * or never will be because the writer has stopped. A reader never waits for
+	 * the writer here: if the record is still to come, the given action is run on
+	 * the writer thread once more records have been written, so that the reader
+	 * can look again then. The action must be quick and must not block.
+	 *
+	 * @param sequence    Sequence number of the record wanted.
+	 * @param whenWritten Action to run when it may have been written (may be null)
+	 * @return True if the record has been written or never will be; false if it
+	 *         is still to come.
+	 */
+	boolean isWritten(long sequence, Runnable whenWritten) {
+		if (isPast(sequence) || (whenWritten == null)) {
+			return isPast(sequence);
+		}
+		waiters.add(whenWritten);
+		// The writer may have got there before it could see the action
+		return isPast(sequence);
+	}
+
+	/**
+	 * Return whether the writer is done with the given sequence number, either
+	 * because it has written it or because it has stopped.
+	 *
+	 * @param sequence Sequence number of the record wanted.
+	 * @return True if the writer will not write the record later.
+	 */
+	private boolean isPast(long sequence) {
+		return stopped || disabled || (nextSequence > sequence);
+	}
+
+	/**
+	 * Run the actions left by readers which found they were ahead of the writer.
+	 * Any still ahead leave theirs again when they next look.
+	 */
+	private void wakeWaiters() {
+		Runnable action;
+		while ((action = waiters.poll()) != null) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Return the sequence number the next record written will have, which is also
+	 * the number of records ever written to the journal.
+	 *
+	 * @return Sequence number of the next record.
+	 */
+	long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Return a cursor reading the records from the given sequence number on,
+	 * skipping any written before the given time.
+	 *
+	 * @param first   Sequence number of the first record wanted.
+	 * @param minTime Time of the oldest record wanted, in milliseconds.
+	 * @return Cursor positioned before the first record wanted.
+	 */
+	JournalCursor cursor(long first, long minTime) {
+		return new JournalCursor(this, first, minTime);
+	}
+
+	/**
+	 * Return the index of every segment, by the sequence number of its first
+	 * record.
+	 *
+	 * @return Indexes of the segments.
+	 */
+	NavigableMap<Long, JournalSegment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Stop the writer once it has written everything, then force the journal out
+	 * to the disk and close it.
+	 */
+	void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Body of the writer thread: write the messages in batches until told to stop,
+	 * then write whatever is left and close the last segment.
+	 */
+	private void writeMessages() {
+		List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+		boolean stopping;
+		boolean more;
+		try {
+			do {
+				// Look before draining, so nothing appended before close is missed
+				stopping = !running;
+				batch.clear();
+				more = ring.drainTo(batch, BATCH_SIZE) > 0;
+				if (more) {
+					// Every message in the batch is stamped with the same time
+					long now = System.currentTimeMillis();
+					for (Pending pending : batch) {
+						if (early.isEmpty() && (pending.sequence == nextSequence)) {
+							writeRecord(pending.message.getEncoded(WireFormat.BINARY), now);
+						} else {
+							early.add(pending);
+						}
+						writeEarly(now);
+					}
+					wakeWaiters();
+				} else if (!stopping) {
+					LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+				}
+				if (dirty && (policy == FsyncPolicy.ALWAYS
+						|| (policy == FsyncPolicy.INTERVAL && System.nanoTime() - lastForce >= intervalNanos))) {
+					force();
+				}
+			} while (!stopping || more);
+			if (!early.isEmpty()) {
+				ChatLogger.warning("Dropped " + early.size() + " journal messages waiting for sequence number "
+						+ nextSequence + ".");
+			}
+			closeSegment();
+		} catch (IOException | RuntimeException e) {
+			ChatLogger.error("Could not write the message journal: " + e.toString());
+		} finally {
+			if (running) {
+				disable();
+			}
+			// Nothing more will be written, so nobody should wait for it
+			stopped = true;
+			wakeWaiters();
+		}
+	}
+
+	/**
+	 * Write the messages held back because they arrived early, for as long as the
+	 * next one is the one whose turn it is. A message whose sequence number has
+	 * already been written can never be, so it is dropped.
+	 *
+	 * @param time Time at which the messages are written, in milliseconds.
+	 * @throws IOException Exception thrown if a new segment cannot be created.
+	 */
+	private void writeEarly(long time) throws IOException {
+		while (!early.isEmpty() && (early.peek().sequence <= nextSequence)) {
+			Pending pending = early.poll();
+			if (pending.sequence == nextSequence) {
+				writeRecord(pending.message.getEncoded(WireFormat.BINARY), time);
+			} else {
+				ChatLogger.warning("Dropped a journal message for sequence number " + pending.sequence
+						+ ", which was already written.");
+				written++;
+			}
+		}
+	}
+
+	/**
+	 * Copy a message's bytes into the current segment, starting a new segment if
+	 * the record does not fit.
+	 *
+	 * @param frame Bytes the message is sent over the network as.
+	 * @param time  Time at which the message is written, in milliseconds.
+	 * @throws IOException Exception thrown if a new segment cannot be created.
+	 */
+	private void writeRecord(ByteBuffer frame, long time) throws IOException {
+		int length = frame.remaining();
+		// Leave room for the header that marks the end of the segment
+		if (segment.remaining() < length + (2 * HEADER_BYTES)) {
+			closeSegment();
+			openSegment(nextSequence);
+		}
+		int start = segment.position();
+		segment.putInt(length);
+		segment.putInt(0);
+		segment.putLong(time);
+		segment.put(frame);
+		segment.putInt(start + CRC_OFFSET, checksum(segment, start, length));
+		index.add(nextSequence, start, time);
+		// Let the readers see the record
+		nextSequence++;
+		written++;
+		dirty = true;
+	}
+
+	/**
+	 * Compute the checksum of the record starting at the given offset.
+	 *
+	 * @param buff   Buffer holding the record.
+	 * @param start  Offset of the record.
+	 * @param length Length of the message's bytes in the record.
+	 * @return The record's checksum.
+	 */
+	private int checksum(ByteBuffer buff, int start, int length) {
+		ByteBuffer view = buff.duplicate();
+		view.limit(start + HEADER_BYTES + length).position(start + TIME_OFFSET);
+		crc.reset();
+		crc.update(view);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Force everything written so far out to the disk.
+	 */
+	private void force() {
+		segment.force();
+		dirty = false;
+		lastForce = System.nanoTime();
+	}
+
+	/**
+	 * Load or rebuild the index of every segment, then find the end of the last
+	 * complete record in the last segment, or start the first segment if there is
+	 * none.
+	 *
+	 * @throws IOException Exception thrown if the segments cannot be read.
+	 */
+	private void recover() throws IOException {
+		List<Path> files = listSegments(directory);
+		if (files.isEmpty()) {
+			openSegment(0);
+			return;
+		}
+		for (Path file : files.subList(0, files.size() - 1)) {
+			long first = firstSequence(file);
+			JournalSegment saved = JournalSegment.load(file, first);
+			if (saved == null) {
+				saved = new JournalSegment(file, first);
+				try (FileChannel older = FileChannel.open(file, StandardOpenOption.READ)) {
+					scan(older.map(FileChannel.MapMode.READ_ONLY, 0, older.size()), saved);
+				}
+			}
+			segments.put(first, saved);
+		}
+		Path last = files.get(files.size() - 1);
+		index = new JournalSegment(last, firstSequence(last));
+		segments.put(index.getFirst(), index);
+		channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+		nextSequence = scan(segment, index);
+		// Wipe out whatever was left of a record which was only partly written
+		int end = segment.position();
+		while (segment.hasRemaining() && (segment.position() < end + HEADER_BYTES)) {
+			segment.put((byte) 0);
+		}
+		segment.position(end);
+	}
+
+	/**
+	 * Check the records of a segment one by one, indexing them, until the first
+	 * one which is missing or incomplete.
+	 *
+	 * @param buff  Mapping of the segment; left positioned after the last complete
+	 *              record.
+	 * @param found Index to which the records are added.
+	 * @return Sequence number following the last complete record.
+	 */
+	private long scan(ByteBuffer buff, JournalSegment found) {
+		long sequence = found.getFirst();
+		while (true) {
+			int start = buff.position();
+			int length = (buff.remaining() >= HEADER_BYTES) ? buff.getInt(start) : 0;
+			if ((length <= 0) || (length > buff.remaining() - HEADER_BYTES)
+					|| (buff.getInt(start + CRC_OFFSET) != checksum(buff, start, length))) {
+				return sequence;
+			}
+			found.add(sequence, start, buff.getLong(start + TIME_OFFSET));
+			buff.position(start + HEADER_BYTES + length);
+			sequence++;
+		}
+	}
+
+	/**
+	 * Create and map a new segment.
+	 *
+	 * @param first Sequence number of the first record in the segment.
+	 * @throws IOException Exception thrown if the segment cannot be created.
+	 */
+	private void openSegment(long first) throws IOException {
+		Path path = directory.resolve(segmentName(first));
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		index = new JournalSegment(path, first);
+		segments.put(first, index);
+	}
+
+	/**
+	 * Force the current segment out to the disk, save its index and close its
+	 * file. The mapping goes away once it is no longer referenced.
+	 *
+	 * @throws IOException Exception thrown if the file cannot be closed.
+	 */
+	private void closeSegment() throws IOException {
+		force();
+		index.save();
+		channel.close();
+	}
+
+	/**
+	 * Return the name of the segment starting with the given sequence number.
+	 * Numbers are zero-padded so that the names sort in the order of the records.
+	 *
+	 * @param first Sequence number of the first record in the segment.
+	 * @return Name of the segment file.
+	 */
+	static String segmentName(long first) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, first, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Return the sequence number of the first record in a segment.
+	 *
+	 * @param path Path of the segment file.
+	 * @return Sequence number given by the segment's name.
+	 */
+	static long firstSequence(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Return the segment files in a directory, oldest first.
+	 *
+	 * @param dir Directory holding the segment files.
+	 * @return Paths of the segment files.
+	 * @throws IOException Exception thrown if the directory cannot be read.
+	 */
+	static List<Path> listSegments(Path dir) throws IOException {
+		List<Path> result = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				result.add(file);
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * A message handed to the writer, with the sequence number it is to be written
+	 * under. Ordered by that number.
+	 */
+	private static final class Pending implements Comparable<Pending> {
+		/** Sequence number the message is to be written under. */
+		private final long sequence;
+
+		/** The message itself. */
+		private final Message message;
+
+		/**
+		 * Create a new pending message.
+		 *
+		 * @param seq Sequence number the message is to be written under.
+		 * @param msg The message itself.
+		 */
+		private Pending(long seq, Message msg) {
+			sequence = seq;
+			message = msg;
+		}
+
+		@Override
+		public int compareTo(Pending other) {
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
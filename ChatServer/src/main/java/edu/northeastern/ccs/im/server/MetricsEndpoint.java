@@ -0,0 +1,73 @@
+package edu.northeastern.ccs.im.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Plain-text HTTP endpoint serving the server's metrics at /metrics, one
+ * "name value" line per metric, so they can be read with curl or scraped by a
+ * monitoring system. It only listens on the loopback interface, so nobody
+ * outside the machine can read it.
+ */
+class MetricsEndpoint {
+
+	/** Path at which the metrics are served. */
+	static final String PATH = "/metrics";
+
+	/** Server answering the requests. */
+	private final HttpServer server;
+
+	/**
+	 * Start serving the given metrics.
+	 *
+	 * @param metrics Metrics to be served.
+	 * @param port    Port on the loopback interface to listen on; 0 for any free
+	 *                port.
+	 * @throws IOException Exception thrown if the port cannot be listened on.
+	 */
+	MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext(PATH, exchange -> respond(exchange, metrics));
+		server.start();
+	}
+
+	/**
+	 * Return the port the endpoint listens on.
+	 *
+	 * @return Port number.
+	 */
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop serving the metrics.
+	 */
+	void close() {
+		server.stop(0);
+	}
+
+	/**
+	 * Answer a request with the current value of every metric.
+	 *
+	 * @param exchange Request being answered.
+	 * @param metrics  Metrics to be served.
+	 * @throws IOException Exception thrown if the answer cannot be sent.
+	 */
+	private static void respond(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+		StringBuilder text = new StringBuilder();
+		metrics.format(text);
+		byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
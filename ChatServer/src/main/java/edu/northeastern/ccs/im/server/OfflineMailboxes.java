@@ -0,0 +1,396 @@
+package edu.northeastern.ccs.im.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.Message;
+import edu.northeastern.ccs.im.WireFormat;
+
+/**
+ * Mailboxes on disk holding the direct messages sent to users who are not
+ * logged in, so they can be delivered when the user next logs in. Each user
+ * has an append-only file of records, each the length of a message's bytes
+ * followed by the bytes the message is sent over the network as in the binary
+ * framing, so that names and text outside US-ASCII survive, and a small
+ * file holding the offset up to which the mailbox has been delivered. Once
+ * everything has been delivered both files are deleted. A delivery which stops
+ * with at least half of the file delivered rewrites the file with only the
+ * rest, so a mailbox that is never emptied does not keep growing.
+ *
+ * Nothing is kept in memory for a user who is offline, so the memory used
+ * does not depend on how many users have mail waiting. A mailbox is delivered
+ * through a Delivery which reads the file a chunk at a time. Only one Delivery
+ * of a mailbox may be open at once, even when several clients are logged in
+ * under the same name.
+ */
+class OfflineMailboxes {
+
+	/** Suffix of the names of mailbox files. */
+	private static final String MAILBOX_SUFFIX = ".box";
+
+	/** Suffix of the names of the files holding how far a mailbox was delivered. */
+	private static final String OFFSET_SUFFIX = ".off";
+
+	/** Suffix of the names of the files a mailbox is rewritten into when compacted. */
+	private static final String COMPACT_SUFFIX = ".new";
+
+	/** Number of bytes in front of each message's bytes. */
+	private static final int HEADER_BYTES = 4;
+
+	/** Number of bytes read from a mailbox at a time. */
+	private static final int CHUNK_BYTES = 64 * 1024;
+
+	/** Number of locks the mailboxes are spread over. */
+	private static final int LOCK_STRIPES = 64;
+
+	/** Directory holding the mailboxes. */
+	private final Path directory;
+
+	/** Most bytes a single mailbox may hold. */
+	private final long maxBytes;
+
+	/** Locks guarding the mailboxes, chosen by the hash of the user's name. */
+	private final Object[] locks;
+
+	/** Keys of the mailboxes with a Delivery open, changed under the mailbox's lock. */
+	private final Set<String> delivering;
+
+	/**
+	 * Open the mailboxes in the given directory, creating the directory if needed.
+	 *
+	 * @param dir   Directory holding the mailboxes.
+	 * @param limit Most bytes a single mailbox may hold.
+	 * @throws IOException Exception thrown if the directory cannot be created.
+	 */
+	OfflineMailboxes(Path dir, long limit) throws IOException {
+		directory = dir;
+		maxBytes = limit;
+		locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+		delivering = ConcurrentHashMap.newKeySet();
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Add a direct message to the mailbox of the user it is addressed to.
+	 *
+	 * Only the messages still waiting count towards the mailbox's limit, not
+	 * those already delivered from the front of its file.
+	 *
+	 * @param msg Direct message whose recipient is not logged in.
+	 * @return True if the message was stored; false if the mailbox is full or
+	 *         cannot be written.
+	 */
+	boolean store(Message msg) {
+		String key = key(msg.getRecipient());
+		ByteBuffer frame = msg.getEncoded(WireFormat.BINARY);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(0, frame.remaining());
+		ByteBuffer[] record = { header, frame };
+		synchronized (lock(key)) {
+			try (FileChannel channel = FileChannel.open(directory.resolve(key + MAILBOX_SUFFIX),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				long waiting = channel.size() - readOffset(key);
+				if (waiting + HEADER_BYTES + frame.remaining() > maxBytes) {
+					return false;
+				}
+				while (frame.hasRemaining()) {
+					channel.write(record);
+				}
+			} catch (IOException e) {
+				ChatLogger.warning("Could not store a message for " + msg.getRecipient() + ": " + e.toString());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start delivering the mailbox of a user who has just logged in. The mailbox
+	 * is not delivered again while an earlier delivery of it is still open, as
+	 * both would start from the same offset and send the same messages.
+	 *
+	 * @param user Name with which the user logged in.
+	 * @return Delivery of the mailbox, or null if there is no mail waiting or it
+	 *         is already being delivered.
+	 */
+	Delivery deliver(String user) {
+		String key = key(user);
+		synchronized (lock(key)) {
+			if (!Files.exists(directory.resolve(key + MAILBOX_SUFFIX)) || !delivering.add(key)) {
+				return null;
+			}
+			return new Delivery(key);
+		}
+	}
+
+	/**
+	 * Return the lock guarding a mailbox.
+	 *
+	 * @param key Key of the mailbox.
+	 * @return Lock for the mailbox.
+	 */
+	private Object lock(String key) {
+		return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Return how far a mailbox has been delivered, as saved by the last delivery
+	 * to stop before the end. The caller must hold the mailbox's lock.
+	 *
+	 * @param key Key of the mailbox.
+	 * @return Offset following the last message delivered.
+	 */
+	private long readOffset(String key) {
+		Path path = directory.resolve(key + OFFSET_SUFFIX);
+		try {
+			byte[] bytes = Files.exists(path) ? Files.readAllBytes(path) : new byte[0];
+			return (bytes.length == Long.BYTES) ? ByteBuffer.wrap(bytes).getLong() : 0;
+		} catch (IOException e) {
+			ChatLogger.warning("Could not read the offset of " + key + ": " + e.toString());
+			return 0;
+		}
+	}
+
+	/**
+	 * Turn a user's name into the name of their mailbox. Names are matched
+	 * ignoring case, and anything that is not a letter, digit, dash, dot or
+	 * underscore is escaped so the name cannot leave the directory.
+	 *
+	 * @param user Name of the user.
+	 * @return Key naming the user's mailbox files.
+	 */
+	static String key(String user) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : user.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+			if (((b >= 'a') && (b <= 'z')) || ((b >= '0') && (b <= '9')) || (b == '-') || (b == '.')
+					|| (b == '_')) {
+				result.append((char) b);
+			} else {
+				result.append(String.format("%%%02X", b & 0xFF));
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Delivery of one user's mailbox, oldest message first. Only one chunk of the
+	 * mailbox is held in memory at a time. Used by a single thread.
+	 *
+	 * Delivery is at most once: a message counts as delivered as soon as next
+	 * returns it, before it has reached the client. Should the client go away
+	 * while the message is on its way, it is not delivered again.
+	 */
+	class Delivery {
+		/** Key of the mailbox being delivered. */
+		private final String key;
+
+		/** Bytes read from the mailbox and not yet delivered. */
+		private ByteBuffer chunk;
+
+		/** Offset in the file of the next byte to be read into the chunk. */
+		private long readPosition;
+
+		/** Offset in the file following the last message delivered. */
+		private long delivered;
+
+		/**
+		 * Start delivering a mailbox from where the last delivery stopped.
+		 *
+		 * @param mailbox Key of the mailbox to deliver.
+		 */
+		private Delivery(String mailbox) {
+			key = mailbox;
+			chunk = ByteBuffer.allocate(CHUNK_BYTES);
+			chunk.flip();
+			// The caller holds the mailbox's lock
+			delivered = readOffset(key);
+			readPosition = delivered;
+		}
+
+		/**
+		 * Return the next message in the mailbox, which from then on counts as
+		 * delivered. Once the mailbox has been delivered completely, it is
+		 * deleted. A record whose length no message could have, which only a
+		 * damaged file holds, ends the mailbox there, as nothing after it can be
+		 * found.
+		 *
+		 * @return The next message, or null once the delivery is over.
+		 */
+		Message next() {
+			while (chunk != null) {
+				if (chunk.remaining() >= HEADER_BYTES) {
+					int length = chunk.getInt(chunk.position());
+					if ((length < 0) || (HEADER_BYTES + (long) length > maxBytes)) {
+						ChatLogger.warning("Dropping the rest of the mailbox " + key + " after a record of length "
+								+ length + " at offset " + delivered + ".");
+						discard();
+						return null;
+					}
+					if (chunk.remaining() >= HEADER_BYTES + length) {
+						ByteBuffer frame = chunk.duplicate();
+						frame.position(chunk.position() + HEADER_BYTES).limit(frame.position() + length);
+						chunk.position(frame.limit());
+						delivered += HEADER_BYTES + length;
+						Message msg = Message.fromEncoded(frame);
+						if (msg != null) {
+							return msg;
+						}
+						continue;
+					}
+					if (HEADER_BYTES + length > chunk.capacity()) {
+						// Make room for a message bigger than a chunk
+						chunk = ByteBuffer.allocate(HEADER_BYTES + length).put(chunk);
+						chunk.flip();
+					}
+				}
+				if (!fill()) {
+					finish();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Stop delivering, remembering how far the delivery got so the rest is
+		 * delivered next time.
+		 */
+		void close() {
+			if (chunk != null) {
+				finish();
+			}
+		}
+
+		/**
+		 * Read more of the mailbox into the chunk.
+		 *
+		 * @return True if anything was read; false if the whole mailbox has been read.
+		 */
+		private boolean fill() {
+			synchronized (lock(key)) {
+				try (FileChannel channel = FileChannel.open(mailboxPath(), StandardOpenOption.READ)) {
+					chunk.compact();
+					int count = channel.read(chunk, readPosition);
+					chunk.flip();
+					if (count > 0) {
+						readPosition += count;
+						return true;
+					}
+				} catch (IOException e) {
+					ChatLogger.warning("Could not read the mailbox " + key + ": " + e.toString());
+				}
+				return false;
+			}
+		}
+
+		/**
+		 * End the delivery, deleting the mailbox if everything in it was delivered
+		 * and compacting it if at least half of it was.
+		 */
+		private void finish() {
+			synchronized (lock(key)) {
+				try {
+					long size = Files.size(mailboxPath());
+					if (size <= delivered) {
+						Files.deleteIfExists(mailboxPath());
+						Files.deleteIfExists(offsetPath());
+					} else if (delivered >= size - delivered) {
+						compact(size);
+					} else {
+						writeOffset();
+					}
+				} catch (IOException e) {
+					ChatLogger.warning("Could not clean up the mailbox " + key + ": " + e.toString());
+				}
+				end();
+			}
+		}
+
+		/**
+		 * End the delivery and delete the mailbox, whatever is left in it.
+		 */
+		private void discard() {
+			synchronized (lock(key)) {
+				try {
+					Files.deleteIfExists(mailboxPath());
+					Files.deleteIfExists(offsetPath());
+				} catch (IOException e) {
+					ChatLogger.warning("Could not clean up the mailbox " + key + ": " + e.toString());
+				}
+				end();
+			}
+		}
+
+		/**
+		 * Let the mailbox be delivered again. The caller must hold the mailbox's
+		 * lock.
+		 */
+		private void end() {
+			chunk = null;
+			delivering.remove(key);
+		}
+
+		/**
+		 * Replace the mailbox with a copy holding only what has not been delivered,
+		 * which starts at offset zero. The caller must hold the mailbox's lock.
+		 *
+		 * @param size Size of the mailbox file.
+		 * @throws IOException Exception thrown if the mailbox cannot be rewritten.
+		 */
+		private void compact(long size) throws IOException {
+			Path copy = directory.resolve(key + COMPACT_SUFFIX);
+			try (FileChannel from = FileChannel.open(mailboxPath(), StandardOpenOption.READ);
+					FileChannel to = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+				long position = delivered;
+				while (position < size) {
+					position += from.transferTo(position, size - position, to);
+				}
+			}
+			Files.move(copy, mailboxPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(offsetPath());
+		}
+
+		/**
+		 * Remember how far the mailbox has been delivered. The caller must hold the
+		 * mailbox's lock.
+		 */
+		private void writeOffset() {
+			try {
+				Files.write(offsetPath(), ByteBuffer.allocate(Long.BYTES).putLong(0, delivered).array());
+			} catch (IOException e) {
+				ChatLogger.warning("Could not save the offset of " + key + ": " + e.toString());
+			}
+		}
+
+		/**
+		 * Return the path of the mailbox file.
+		 *
+		 * @return Path of the mailbox.
+		 */
+		private Path mailboxPath() {
+			return directory.resolve(key + MAILBOX_SUFFIX);
+		}
+
+		/**
+		 * Return the path of the file holding how far the mailbox was delivered.
+		 *
+		 * @return Path of the offset file.
+		 */
+		private Path offsetPath() {
+			return directory.resolve(key + OFFSET_SUFFIX);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.Message;
+import edu.northeastern.ccs.im.WireFormat;
+
+/**
+ * Queue of the messages waiting to be sent to a single client. The queue is
+ * bounded both by the number of messages and by the number of bytes they take
+ * up on the wire; when a client falls behind far enough to fill it, the
+ * queue's SlowConsumerPolicy decides what gives. This keeps a stalled client
+ * from growing the heap without limit while everybody else keeps talking.
+ * Messages are counted at their size in the framing the client is sent, so a
+ * client speaking the binary or compressed framing is charged what it will
+ * actually be sent, and no text encoding is made only to be measured.
+ *
+ * Many threads may add messages while the client's own thread removes them.
+ */
+class OutboundQueue {
+
+	/** Number of times each policy has been applied, across all clients. */
+	private static final LongAdder[] POLICY_COUNTS = new LongAdder[SlowConsumerPolicy.values().length];
+
+	/** All of the static initialization occurs in this "method" */
+	static {
+		for (int i = 0; i < POLICY_COUNTS.length; i++) {
+			POLICY_COUNTS[i] = new LongAdder();
+		}
+	}
+
+	/** Messages waiting to be sent, oldest first. */
+	private final ArrayDeque<Message> messages;
+
+	/** Most messages this queue may hold. */
+	private final int maxMessages;
+
+	/** Most bytes the messages in this queue may take up. */
+	private final long maxBytes;
+
+	/** What to do when the queue is full. */
+	private final SlowConsumerPolicy policy;
+
+	/** Framing in which the client is sent its messages. */
+	private WireFormat format;
+
+	/** Bytes taken up by the messages in the queue. */
+	private long bytes;
+
+	/** Notice standing in for coalesced messages; null when there is none. */
+	private Message notice;
+
+	/** Number of messages the notice stands in for. */
+	private int skipped;
+
+	/**
+	 * Create a new, empty queue.
+	 *
+	 * @param messageLimit Most messages the queue may hold.
+	 * @param byteLimit    Most bytes the queued messages may take up.
+	 * @param whenFull     What to do when the queue is full.
+	 */
+	OutboundQueue(int messageLimit, long byteLimit, SlowConsumerPolicy whenFull) {
+		messages = new ArrayDeque<>();
+		maxMessages = Math.max(1, messageLimit);
+		maxBytes = byteLimit;
+		policy = whenFull;
+		// Everybody starts out speaking text
+		format = WireFormat.TEXT;
+	}
+
+	/**
+	 * Choose the framing in which the queued messages are counted, which should
+	 * be the one the client is sent. Anything already waiting is counted again.
+	 *
+	 * @param wireFormat Framing in which the client is sent its messages.
+	 */
+	synchronized void setWireFormat(WireFormat wireFormat) {
+		format = wireFormat;
+		bytes = 0;
+		for (Message message : messages) {
+			bytes += message.getEncodedLength(format);
+		}
+	}
+
+	/**
+	 * Return the number of times the given policy has been applied to a full queue
+	 * since the server started.
+	 *
+	 * @param which Policy whose count is wanted.
+	 * @return Number of times that policy has been applied.
+	 */
+	static long getPolicyCount(SlowConsumerPolicy which) {
+		return POLICY_COUNTS[which.ordinal()].sum();
+	}
+
+	/**
+	 * Add a message to the end of the queue, applying the policy if there is no
+	 * room for it. A message larger than the whole queue may hold is never
+	 * added: dropping or coalescing what is waiting would not make room for it,
+	 * so it is dropped itself, or the client disconnected if that is the policy,
+	 * and counted against the policy like any other overflow.
+	 *
+	 * @param message Message to be sent to the client.
+	 * @return True if the client can stay; false if it should be disconnected.
+	 */
+	synchronized boolean offer(Message message) {
+		boolean result = true;
+		int size = message.getEncodedLength(format);
+		if (size > maxBytes) {
+			POLICY_COUNTS[policy.ordinal()].increment();
+			ChatLogger.warning("Dropping a message of " + size + " bytes, more than a client's queue may hold.");
+			result = (policy != SlowConsumerPolicy.DISCONNECT);
+		} else if (!hasRoomFor(size)) {
+			POLICY_COUNTS[policy.ordinal()].increment();
+			switch (policy) {
+			case DROP_OLDEST:
+				while (!messages.isEmpty() && !hasRoomFor(size)) {
+					poll();
+				}
+				add(message, size);
+				break;
+			case DROP_NEWEST:
+				break;
+			case DISCONNECT:
+				result = false;
+				break;
+			case COALESCE:
+				coalesce(0);
+				if (hasRoomFor(size)) {
+					add(message, size);
+				} else {
+					// Not even the notice and the message fit, so count it in the notice
+					coalesce(1);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid slow consumer policy.");
+			}
+		} else {
+			add(message, size);
+		}
+		return result;
+	}
+
+	/**
+	 * Remove and return the oldest message in the queue.
+	 *
+	 * @return The oldest message, or null if the queue is empty.
+	 */
+	synchronized Message poll() {
+		Message result = messages.poll();
+		if (result != null) {
+			bytes -= result.getEncodedLength(format);
+			if (result == notice) {
+				notice = null;
+				skipped = 0;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return whether there are no messages waiting.
+	 *
+	 * @return True if the queue is empty; false otherwise.
+	 */
+	synchronized boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/**
+	 * Return the number of messages waiting.
+	 *
+	 * @return Number of messages in the queue.
+	 */
+	synchronized int size() {
+		return messages.size();
+	}
+
+	/**
+	 * Return the number of bytes the waiting messages take up.
+	 *
+	 * @return Bytes taken up by the messages in the queue.
+	 */
+	synchronized long byteSize() {
+		return bytes;
+	}
+
+	/**
+	 * Check whether a message of the given size still fits in the queue.
+	 *
+	 * @param size Length of the message in bytes.
+	 * @return True if the message fits; false otherwise.
+	 */
+	private boolean hasRoomFor(int size) {
+		return (messages.size() < maxMessages) && (bytes + size <= maxBytes);
+	}
+
+	/**
+	 * Add a message to the end of the queue without checking for room.
+	 *
+	 * @param message Message to be added.
+	 * @param size    Length of the message in bytes.
+	 */
+	private void add(Message message, int size) {
+		messages.add(message);
+		bytes += size;
+	}
+
+	/**
+	 * Replace everything in the queue with a single notice counting the messages
+	 * that the client will never see.
+	 *
+	 * @param extra Number of messages dropped which were never in the queue.
+	 */
+	private void coalesce(int extra) {
+		int dropped = skipped + messages.size() - ((notice != null) ? 1 : 0) + extra;
+		messages.clear();
+		bytes = 0;
+		notice = Message.makeBroadcastMessage(ServerConstants.BOUNCER_ID,
+				dropped + " messages were skipped because you fell behind.");
+		skipped = dropped;
+		add(notice, notice.getEncodedLength(format));
+	}
+}
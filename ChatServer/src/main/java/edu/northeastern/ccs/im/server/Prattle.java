@@ -7,9 +7,9 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Paths;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -39,12 +39,37 @@ public abstract class Prattle {
 	private static boolean isReady = false;
 
 	/** Collection of threads that are currently being used. */
-	private static ConcurrentLinkedQueue<ClientRunnable> active;
+	private static ClientRegistry active;
+
+	/** Members of each of the groups clients have joined. */
+	private static GroupRegistry groups;
+
+	/** Reactor running the clients on demand; null when clients are polled. */
+	private static ClientReactor reactor;
+
+	/** Recent broadcast messages, also written to the journal; null when not kept. */
+	private static MessageHistory history;
+
+	/** Mailboxes of the users who are offline; null when mail is not kept. */
+	private static OfflineMailboxes mailboxes;
+
+	/** Wheel finding the clients which have been inactive too long; null when polled. */
+	private static TimingWheel idleTimers;
+
+	/** Numbers describing the server's health. */
+	private static ServerMetrics metrics;
+
+	/** Local endpoint serving the metrics as text; null when there is none. */
+	private static MetricsEndpoint metricsEndpoint;
 
 	/** All of the static initialization occurs in this "method" */
 	static {
-		// Create the new queue of active threads.
-		active = new ConcurrentLinkedQueue<>();
+		// Create the new registry of active threads.
+		active = new ClientRegistry();
+		// Create the metrics describing them.
+		metrics = new ServerMetrics(active);
+		// Create the registry of groups.
+		groups = new GroupRegistry();
 	}
 
 	/**
@@ -54,13 +79,140 @@ public abstract class Prattle {
 	 * @param message Message that the client sent.
 	 */
 	public static void broadcastMessage(Message message) {
-		// Loop through all of our active threads
-		for (ClientRunnable tt : active) {
+		// Encode the message now so every client shares the same bytes
+		message.getEncoded();
+		// Keep it for clients logging in later, and in the journal if there is one
+		long sequence = (history != null) ? history.record(message) : -1;
+		// Loop through all of our logged in threads
+		for (ClientRunnable tt : active.loggedIn()) {
 			// Do not send the message to any clients that are not ready to receive it.
 			if (tt.isInitialized()) {
+				tt.enqueueBroadcast(message, sequence);
+			}
+		}
+	}
+
+	/**
+	 * Send a direct message to the one client it is addressed to. Finding that
+	 * client is a single lookup, so the message costs one enqueue instead of a
+	 * trip past every client on the system.
+	 * 
+	 * When the recipient is not logged in, the message is kept in their mailbox, if
+	 * mailboxes are kept, and delivered when they next log in.
+	 * 
+	 * @param message Message that the client sent.
+	 * @return True if the recipient was given the message or it was kept in their
+	 *         mailbox; false otherwise.
+	 */
+	public static boolean sendDirectMessage(Message message) {
+		ClientRunnable recipient = active.findByName(message.getRecipient());
+		boolean result = (recipient != null) && recipient.isInitialized();
+		if (result) {
+			recipient.enqueueMessage(message);
+		} else if (mailboxes != null) {
+			result = mailboxes.store(message);
+			// The recipient may have logged in and opened its mailbox meanwhile
+			recipient = active.findByName(message.getRecipient());
+			if (result && (recipient != null) && recipient.isInitialized()) {
+				recipient.checkMail();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Send a group message to the members of the group it is addressed to. Only
+	 * members may send to a group, and only they receive the message.
+	 * 
+	 * @param message Message that the client sent.
+	 * @param sender  Thread handling the I/O for the client who sent it.
+	 * @return True if the sender is a member of the group; false otherwise.
+	 */
+	public static boolean sendGroupMessage(Message message, ClientRunnable sender) {
+		String group = message.getRecipient();
+		boolean result = (group != null) && groups.isMember(group, sender);
+		if (result) {
+			// Encode the message now so every member shares the same bytes
+			message.getEncoded();
+			for (ClientRunnable tt : groups.members(group)) {
 				tt.enqueueMessage(message);
 			}
 		}
+		return result;
+	}
+
+	/**
+	 * Add the given IM client to a group.
+	 * 
+	 * @param group  Name of the group to join.
+	 * @param client Thread handling the I/O for the client joining the group.
+	 */
+	public static void joinGroup(String group, ClientRunnable client) {
+		groups.join(group, client);
+	}
+
+	/**
+	 * Remove the given IM client from a group.
+	 * 
+	 * @param group  Name of the group to leave.
+	 * @param client Thread handling the I/O for the client leaving the group.
+	 */
+	public static void leaveGroup(String group, ClientRunnable client) {
+		groups.leave(group, client);
+	}
+
+	/**
+	 * Make the given IM client, which has just logged in, available by its name and
+	 * user id.
+	 * 
+	 * @param client Thread handling the I/O for a client who has just logged in.
+	 */
+	public static void addLoggedInClient(ClientRunnable client) {
+		active.login(client);
+	}
+
+	/**
+	 * Find the logged in IM client with the given name.
+	 * 
+	 * @param name Name with which the client logged in.
+	 * @return Thread handling the client's I/O, or null if nobody has that name.
+	 */
+	public static ClientRunnable findClient(String name) {
+		return active.findByName(name);
+	}
+
+	/**
+	 * Find the logged in IM client with the given user id.
+	 * 
+	 * @param userId User id of the client.
+	 * @return Thread handling the client's I/O, or null if nobody has that id.
+	 */
+	public static ClientRunnable findClient(int userId) {
+		return active.findById(userId);
+	}
+
+	/**
+	 * Start replaying the recent broadcast messages to a client which has just
+	 * logged in, as configured by the history properties.
+	 * 
+	 * @return Replay of the messages, or null if there is nothing to replay.
+	 */
+	static MessageHistory.Replay replayHistory() {
+		if ((history == null) || (ServerConstants.HISTORY_MESSAGES <= 0)) {
+			return null;
+		}
+		return history.replay(ServerConstants.HISTORY_MESSAGES,
+				TimeUnit.MINUTES.toMillis(ServerConstants.HISTORY_MINUTES));
+	}
+
+	/**
+	 * Start delivering the mail kept for a user who has just logged in.
+	 * 
+	 * @param name Name with which the user logged in.
+	 * @return Delivery of the user's mailbox, or null if there is no mail.
+	 */
+	static OfflineMailboxes.Delivery openMailbox(String name) {
+		return (mailboxes == null) ? null : mailboxes.deliver(name);
 	}
 
 	/**
@@ -75,6 +227,10 @@ public abstract class Prattle {
 		if (!active.remove(dead)) {
 			ChatLogger.info("Could not find a thread that I tried to remove!\n");
 		}
+		// And take it out of every group it had joined.
+		for (String group : dead.getGroups()) {
+			groups.leave(group, dead);
+		}
 	}
 
 	/**
@@ -106,8 +262,39 @@ public abstract class Prattle {
 			Selector selector = SelectorProvider.provider().openSelector();
 			// Register to receive any incoming connection messages.
 			serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+			// Open the journal and the history before any message can arrive.
+			MessageJournal journal = (ServerConstants.JOURNAL_DIR != null) ? openJournal() : null;
+			if ((journal != null) || (ServerConstants.HISTORY_MESSAGES > 0)) {
+				history = new MessageHistory(ServerConstants.HISTORY_CAPACITY, journal);
+			}
+			if (ServerConstants.MAILBOX_DIR != null) {
+				mailboxes = new OfflineMailboxes(Paths.get(ServerConstants.MAILBOX_DIR), ServerConstants.MAILBOX_BYTES);
+			}
 			// Create our pool of threads on which we will execute.
 			ScheduledExecutorService threadPool = Executors.newScheduledThreadPool(ServerConstants.THREAD_POOL_SIZE);
+			// Publish the metrics over JMX and, if asked, as text on a local port.
+			metrics.register();
+			threadPool.scheduleAtFixedRate(metrics::tick, ServerConstants.METRICS_TICK, ServerConstants.METRICS_TICK,
+					TimeUnit.MILLISECONDS);
+			if (ServerConstants.METRICS_PORT > 0) {
+				metricsEndpoint = openMetricsEndpoint();
+			}
+			// Ping every client regularly so dead connections are found quickly.
+			if (ServerConstants.HEARTBEAT_INTERVAL > 0) {
+				threadPool.scheduleAtFixedRate(Prattle::sendHeartbeats, ServerConstants.HEARTBEAT_INTERVAL,
+						ServerConstants.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+			}
+			// In reactor mode clients are only run when there is work for them to do.
+			if (ServerConstants.EXECUTION_MODE == ExecutionMode.REACTOR) {
+				reactor = new ClientReactor(threadPool);
+			}
+			if (ServerConstants.EXECUTION_MODE != ExecutionMode.SCHEDULED) {
+				// Clients that are never woken still need to be timed out.
+				idleTimers = new TimingWheel(TimeUnit.MILLISECONDS.toNanos(ServerConstants.IDLE_CHECK_DELAY),
+						ServerConstants.IDLE_WHEEL_SLOTS);
+				threadPool.scheduleWithFixedDelay(Prattle::wakeTimedOutClients, ServerConstants.IDLE_CHECK_DELAY,
+						ServerConstants.IDLE_CHECK_DELAY, TimeUnit.MILLISECONDS);
+			}
 			// If we get this far than the server is initialized correctly
 			isReady = true;
 			// Now listen on this port as long as the server is ready
@@ -136,6 +323,68 @@ public abstract class Prattle {
 		}
 	}
 
+	/**
+	 * Open the message journal and make sure it is closed when the server stops.
+	 * 
+	 * @return The journal.
+	 * @throws IOException Exception thrown if the journal cannot be opened.
+	 */
+	private static MessageJournal openJournal() throws IOException {
+		MessageJournal journal = new MessageJournal(Paths.get(ServerConstants.JOURNAL_DIR),
+				ServerConstants.JOURNAL_SEGMENT_BYTES, ServerConstants.JOURNAL_FSYNC_POLICY,
+				ServerConstants.JOURNAL_FSYNC_INTERVAL, ServerConstants.JOURNAL_CAPACITY);
+		Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+		return journal;
+	}
+
+	/**
+	 * Start serving the metrics as text on the local port and make sure the
+	 * endpoint is stopped when the server stops. The endpoint is only there for
+	 * monitoring, so a port which cannot be listened on is logged and the server
+	 * carries on without it.
+	 * 
+	 * @return The endpoint, or null if it could not be started.
+	 */
+	private static MetricsEndpoint openMetricsEndpoint() {
+		try {
+			MetricsEndpoint endpoint = new MetricsEndpoint(metrics, ServerConstants.METRICS_PORT);
+			Runtime.getRuntime().addShutdownHook(new Thread(endpoint::close));
+			return endpoint;
+		} catch (IOException e) {
+			ChatLogger.error("Could not serve the metrics on port " + ServerConstants.METRICS_PORT + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Send a ping to every logged in client, disconnecting those that left too
+	 * many unanswered. The one ping is encoded once and shared by every client.
+	 */
+	static void sendHeartbeats() {
+		Message ping = Message.makePingMessage(ServerConstants.SERVER_NAME);
+		ping.getEncoded();
+		for (ClientRunnable tt : active.loggedIn()) {
+			if (tt.isInitialized()) {
+				tt.heartbeat(ping);
+			}
+		}
+	}
+
+	/**
+	 * Wake every client whose inactivity timer has run out so that it gets run and
+	 * terminates itself. Only needed when clients are not polled, since idle
+	 * clients are otherwise never run. The timers go back on the wheel in case a
+	 * client was active again just before it ran; they are dropped once it
+	 * terminates.
+	 */
+	private static void wakeTimedOutClients() {
+		for (ClientTimer timer : idleTimers.advance(System.nanoTime())) {
+			timer.expire();
+			idleTimers.add(timer);
+		}
+	}
+
 	/**
 	 * Create a new thread to handle the client for which a request is received.
 	 * 
@@ -148,14 +397,26 @@ public abstract class Prattle {
 			SocketChannel socket = serverSocket.accept();
 			// Make sure we have a connection to work with.
 			if (socket != null) {
-			    NetworkConnection connection = new NetworkConnection(socket);
+				// Clients with threads of their own wait on their connections
+				boolean threaded = (ServerConstants.EXECUTION_MODE == ExecutionMode.VIRTUAL);
+				NetworkConnection connection = new NetworkConnection(socket, threaded);
 				ClientRunnable tt = new ClientRunnable(connection);
 				// Add the thread to the queue of active threads
 				active.add(tt);
-				// Have the client executed by our pool of threads.
-				ScheduledFuture<?> clientFuture = threadPool.scheduleAtFixedRate(tt, ServerConstants.CLIENT_CHECK_DELAY,
-						ServerConstants.CLIENT_CHECK_DELAY, TimeUnit.MILLISECONDS);
-				tt.setFuture(clientFuture);
+				if (reactor != null) {
+					// Have the client executed whenever its channel is ready or it goes idle.
+					reactor.register(tt);
+					idleTimers.add(tt.getTimer());
+				} else if (threaded) {
+					// Give the client threads of its own.
+					tt.startThreads();
+					idleTimers.add(tt.getTimer());
+				} else {
+					// Have the client executed by our pool of threads.
+					ScheduledFuture<?> clientFuture = threadPool.scheduleAtFixedRate(tt,
+							ServerConstants.CLIENT_CHECK_DELAY, ServerConstants.CLIENT_CHECK_DELAY, TimeUnit.MILLISECONDS);
+					tt.setFuture(clientFuture);
+				}
 			}
 		} catch (AssertionError ae) {
 			ChatLogger.error("Caught Assertion: " + ae.toString());
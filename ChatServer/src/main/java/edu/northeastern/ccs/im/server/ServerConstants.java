@@ -28,6 +28,72 @@ public class ServerConstants {
 	/** Delay between times the thread pool runs the client check. */
 	protected static final int CLIENT_CHECK_DELAY = 200;
 
+	/** How the clients are executed; one of the names in ExecutionMode. */
+	protected static final ExecutionMode EXECUTION_MODE = ExecutionMode.fromName(System.getProperty("prattle.mode"));
+
+	/** Delay between the checks for inactive clients in reactor mode. */
+	protected static final int IDLE_CHECK_DELAY = 1000;
+
+	/** Number of ticks of the wheel timing out idle clients before it wraps around. */
+	protected static final int IDLE_WHEEL_SLOTS = 512;
+
+	/** Most incoming messages a client may handle each time it is run. */
+	protected static final int INBOUND_BUDGET = Integer.getInteger("prattle.inbound.budget", 32);
+
+	/** Most messages that may be waiting to be sent to a single client. */
+	protected static final int OUTBOUND_QUEUE_MESSAGES = Integer.getInteger("prattle.queue.messages", 10000);
+
+	/** Most bytes that may be waiting to be sent to a single client. */
+	protected static final long OUTBOUND_QUEUE_BYTES = Long.getLong("prattle.queue.bytes", 4L * 1024 * 1024);
+
+	/** What to do when a client's queue of waiting messages is full. */
+	protected static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy
+			.fromName(System.getProperty("prattle.queue.policy"));
+
+	/** Directory holding the message journal; null to run without a journal. */
+	protected static final String JOURNAL_DIR = System.getProperty("prattle.journal.dir");
+
+	/** Size of each segment file of the message journal. */
+	protected static final int JOURNAL_SEGMENT_BYTES = Integer.getInteger("prattle.journal.segment.bytes",
+			64 * 1024 * 1024);
+
+	/** How often the message journal is forced out to the disk. */
+	protected static final FsyncPolicy JOURNAL_FSYNC_POLICY = FsyncPolicy
+			.fromName(System.getProperty("prattle.journal.fsync"));
+
+	/** Least time in milliseconds between forces of the message journal. */
+	protected static final int JOURNAL_FSYNC_INTERVAL = Integer.getInteger("prattle.journal.fsync.interval", 1000);
+
+	/** Number of messages that may be waiting to be written to the journal. */
+	protected static final int JOURNAL_CAPACITY = 65536;
+
+	/** Most broadcast messages replayed to a client when it logs in; 0 for none. */
+	protected static final int HISTORY_MESSAGES = Integer.getInteger("prattle.history.messages", 0);
+
+	/** Oldest broadcast message replayed at login, in minutes; 0 for any age. */
+	protected static final int HISTORY_MINUTES = Integer.getInteger("prattle.history.minutes", 0);
+
+	/** Number of recent broadcast messages kept in memory for replays. */
+	protected static final int HISTORY_CAPACITY = Integer.getInteger("prattle.history.capacity", 1024);
+
+	/** Directory holding the mailboxes of offline users; null to keep no mail. */
+	protected static final String MAILBOX_DIR = System.getProperty("prattle.mailbox.dir");
+
+	/** Most bytes of mail kept for a single offline user. */
+	protected static final long MAILBOX_BYTES = Long.getLong("prattle.mailbox.bytes", 1024L * 1024);
+
+	/** Seconds between the pings sent to every client; 0 to send none. */
+	protected static final int HEARTBEAT_INTERVAL = Integer.getInteger("prattle.heartbeat.interval", 0);
+
+	/** Pings in a row a client may leave unanswered before it is disconnected. */
+	protected static final int HEARTBEAT_MISSES = Integer.getInteger("prattle.heartbeat.misses", 3);
+
+	/** Port on the loopback interface serving the metrics as text; 0 for none. */
+	protected static final int METRICS_PORT = Integer.getInteger("prattle.metrics.port", 0);
+
+	/** Milliseconds between updates of the message rates. */
+	protected static final int METRICS_TICK = 1000;
+
 	/** Name of the private user who broadcasts interesting responses. */
 	protected static final String SERVER_NAME = "Prattle";
 
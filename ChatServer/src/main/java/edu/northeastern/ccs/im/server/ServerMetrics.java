@@ -0,0 +1,304 @@
+package edu.northeastern.ccs.im.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import edu.northeastern.ccs.im.BufferPool;
+import edu.northeastern.ccs.im.ChatLogger;
+import edu.northeastern.ccs.im.Histogram;
+import edu.northeastern.ccs.im.NetworkConnection;
+
+/**
+ * Registry of the numbers describing the server's health. Events on the hot
+ * path are counted in static striped counters and histograms, so recording one
+ * never allocates and threads recording at the same time do not contend.
+ * Numbers describing the current state, such as how many clients are connected
+ * or how long their queues are, are only worked out when somebody asks for
+ * them. The scheduling lag is reported for the last complete tick, so that its
+ * percentiles follow what the server is doing now rather than since it started.
+ *
+ * The registry is read over JMX and, when a port is configured, as plain text
+ * from a local HTTP endpoint.
+ */
+final class ServerMetrics implements ServerMetricsMBean {
+
+	/** Name under which the metrics are registered with JMX. */
+	static final String OBJECT_NAME = "edu.northeastern.ccs.im:type=ServerMetrics";
+
+	/** Messages received from clients. */
+	private static final LongAdder MESSAGES_IN = new LongAdder();
+
+	/** Clients disconnected by the server because it could not keep them fed. */
+	private static final LongAdder DROPPED_CLIENTS = new LongAdder();
+
+	/** Clients disconnected because they stopped answering pings. */
+	private static final LongAdder DEAD_CLIENTS = new LongAdder();
+
+	/**
+	 * Time clients have waited to be run after they were due during the current
+	 * tick, in nanoseconds. Swapped for an empty histogram on every tick.
+	 */
+	private static volatile Histogram schedulingLag = new Histogram();
+
+	/** Registry of the clients whose state is reported. */
+	private final ClientRegistry clients;
+
+	/** Messages received as of the last tick. */
+	private long lastIn;
+
+	/** Messages sent as of the last tick. */
+	private long lastOut;
+
+	/** Messages received during the last complete second. */
+	private volatile long inPerSecond;
+
+	/** Messages sent during the last complete second. */
+	private volatile long outPerSecond;
+
+	/** Scheduling lag recorded during the last complete tick. */
+	private volatile Histogram lastLag;
+
+	/** Emptied histogram to record the scheduling lag into from the next tick. */
+	private Histogram spareLag;
+
+	/**
+	 * Create the registry.
+	 *
+	 * @param registry Registry of the clients whose state is reported.
+	 */
+	ServerMetrics(ClientRegistry registry) {
+		clients = registry;
+		lastLag = new Histogram();
+		spareLag = new Histogram();
+	}
+
+	/**
+	 * Count a message received from a client.
+	 */
+	static void messageReceived() {
+		MESSAGES_IN.increment();
+	}
+
+	/**
+	 * Count a client the server disconnected because it could not keep it fed.
+	 */
+	static void clientDropped() {
+		DROPPED_CLIENTS.increment();
+	}
+
+	/**
+	 * Count a client disconnected because it stopped answering pings.
+	 */
+	static void clientDead() {
+		DEAD_CLIENTS.increment();
+	}
+
+	/**
+	 * Record how long a client waited to be run after it was due.
+	 *
+	 * @param nanos Time waited, in nanoseconds.
+	 */
+	static void recordSchedulingLag(long nanos) {
+		schedulingLag.record(nanos);
+	}
+
+	/**
+	 * Register the metrics with the platform's JMX server.
+	 */
+	void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			ChatLogger.warning("Could not register the server's metrics: " + e.toString());
+		}
+	}
+
+	/**
+	 * Work out the message rates over the second just ended, and start recording
+	 * the scheduling lag afresh. Called once a second.
+	 */
+	synchronized void tick() {
+		long in = MESSAGES_IN.sum();
+		long out = NetworkConnection.getMessagesWritten();
+		inPerSecond = in - lastIn;
+		outPerSecond = out - lastOut;
+		lastIn = in;
+		lastOut = out;
+		// Nobody records into the spare any more, so it can be emptied and reused
+		Histogram finished = schedulingLag;
+		spareLag.reset();
+		schedulingLag = spareLag;
+		spareLag = lastLag;
+		lastLag = finished;
+	}
+
+	/**
+	 * Write every metric as a line holding its name and value.
+	 *
+	 * @param out Where the lines are written.
+	 */
+	void format(StringBuilder out) {
+		line(out, "prattle_connected_clients", getConnectedClients());
+		line(out, "prattle_logged_in_clients", getLoggedInClients());
+		line(out, "prattle_queued_messages", getQueuedMessages());
+		line(out, "prattle_longest_queue", getLongestQueue());
+		line(out, "prattle_messages_in_total", getMessagesIn());
+		line(out, "prattle_messages_out_total", getMessagesOut());
+		line(out, "prattle_messages_in_per_second", getMessagesInPerSecond());
+		line(out, "prattle_messages_out_per_second", getMessagesOutPerSecond());
+		line(out, "prattle_bytes_written_total", getBytesWritten());
+		line(out, "prattle_dropped_clients_total", getDroppedClients());
+		line(out, "prattle_dead_clients_total", getDeadClients());
+		line(out, "prattle_scheduling_lag_count", lastLag.getCount());
+		line(out, "prattle_scheduling_lag_p50_us", getSchedulingLagP50());
+		line(out, "prattle_scheduling_lag_p99_us", getSchedulingLagP99());
+		line(out, "prattle_scheduling_lag_p999_us", getSchedulingLagP999());
+		line(out, "prattle_scheduling_lag_max_us", getSchedulingLagMax());
+		for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+			line(out, "prattle_queue_policy_total{policy=\"" + policy + "\"}",
+					OutboundQueue.getPolicyCount(policy));
+		}
+		line(out, "prattle_log_records_dropped_total", getLogRecordsDropped());
+		line(out, "prattle_read_buffers_borrowed", getReadBuffersBorrowed());
+		line(out, "prattle_read_buffers_idle", getReadBuffersIdle());
+	}
+
+	/**
+	 * Write one metric.
+	 *
+	 * @param out   Where the line is written.
+	 * @param name  Name of the metric.
+	 * @param value Value of the metric.
+	 */
+	private static void line(StringBuilder out, String name, long value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	@Override
+	public int getConnectedClients() {
+		return clients.connected().size();
+	}
+
+	@Override
+	public int getLoggedInClients() {
+		return clients.loggedIn().size();
+	}
+
+	@Override
+	public long getQueuedMessages() {
+		long result = 0;
+		for (ClientRunnable client : clients.connected()) {
+			result += client.getQueueDepth();
+		}
+		return result;
+	}
+
+	@Override
+	public int getLongestQueue() {
+		int result = 0;
+		for (ClientRunnable client : clients.connected()) {
+			result = Math.max(result, client.getQueueDepth());
+		}
+		return result;
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return MESSAGES_IN.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return NetworkConnection.getMessagesWritten();
+	}
+
+	@Override
+	public long getMessagesInPerSecond() {
+		return inPerSecond;
+	}
+
+	@Override
+	public long getMessagesOutPerSecond() {
+		return outPerSecond;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return NetworkConnection.getBytesWritten();
+	}
+
+	@Override
+	public long getDroppedClients() {
+		return DROPPED_CLIENTS.sum();
+	}
+
+	@Override
+	public long getDeadClients() {
+		return DEAD_CLIENTS.sum();
+	}
+
+	@Override
+	public long getSchedulingLagP50() {
+		return TimeUnit.NANOSECONDS.toMicros(lastLag.getPercentile(50));
+	}
+
+	@Override
+	public long getSchedulingLagP99() {
+		return TimeUnit.NANOSECONDS.toMicros(lastLag.getPercentile(99));
+	}
+
+	@Override
+	public long getSchedulingLagP999() {
+		return TimeUnit.NANOSECONDS.toMicros(lastLag.getPercentile(99.9));
+	}
+
+	@Override
+	public long getSchedulingLagMax() {
+		return TimeUnit.NANOSECONDS.toMicros(lastLag.getMax());
+	}
+
+	@Override
+	public long getDropOldestCount() {
+		return OutboundQueue.getPolicyCount(SlowConsumerPolicy.DROP_OLDEST);
+	}
+
+	@Override
+	public long getDropNewestCount() {
+		return OutboundQueue.getPolicyCount(SlowConsumerPolicy.DROP_NEWEST);
+	}
+
+	@Override
+	public long getDisconnectCount() {
+		return OutboundQueue.getPolicyCount(SlowConsumerPolicy.DISCONNECT);
+	}
+
+	@Override
+	public long getCoalesceCount() {
+		return OutboundQueue.getPolicyCount(SlowConsumerPolicy.COALESCE);
+	}
+
+	@Override
+	public long getLogRecordsDropped() {
+		return ChatLogger.getDroppedRecords();
+	}
+
+	@Override
+	public int getReadBuffersBorrowed() {
+		return BufferPool.getDefault().getBorrowed();
+	}
+
+	@Override
+	public int getReadBuffersIdle() {
+		return BufferPool.getDefault().getIdle();
+	}
+
+	@Override
+	public void resetSchedulingLag() {
+		schedulingLag.reset();
+		lastLag.reset();
+	}
+}
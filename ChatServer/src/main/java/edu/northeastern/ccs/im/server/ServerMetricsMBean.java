@@ -0,0 +1,179 @@
+package edu.northeastern.ccs.im.server;
+
+/**
+ * Management interface through which the server's metrics are read over JMX,
+ * e.g. with jconsole. Latencies are in microseconds and rates are per second,
+ * taken over the last complete second.
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * Return the number of clients whose connections are open.
+	 *
+	 * @return Number of connected clients.
+	 */
+	int getConnectedClients();
+
+	/**
+	 * Return the number of clients which have logged in.
+	 *
+	 * @return Number of logged in clients.
+	 */
+	int getLoggedInClients();
+
+	/**
+	 * Return the number of messages waiting to be sent, across all clients.
+	 *
+	 * @return Number of queued messages.
+	 */
+	long getQueuedMessages();
+
+	/**
+	 * Return the number of messages waiting for the client furthest behind.
+	 *
+	 * @return Length of the longest queue.
+	 */
+	int getLongestQueue();
+
+	/**
+	 * Return the number of messages received from clients since the server
+	 * started.
+	 *
+	 * @return Number of messages received.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * Return the number of messages sent to clients since the server started,
+	 * counting each once the client's socket has taken all of it.
+	 *
+	 * @return Number of messages sent.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * Return the number of messages received from clients in the last second.
+	 *
+	 * @return Messages received per second.
+	 */
+	long getMessagesInPerSecond();
+
+	/**
+	 * Return the number of messages sent to clients in the last second.
+	 *
+	 * @return Messages sent per second.
+	 */
+	long getMessagesOutPerSecond();
+
+	/**
+	 * Return the number of bytes the clients' sockets have taken since the server
+	 * started, leaving out output still queued or dropped by a failed write.
+	 *
+	 * @return Number of bytes written.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * Return the number of clients disconnected because they fell too far behind
+	 * or a message could not be sent to them.
+	 *
+	 * @return Number of clients dropped.
+	 */
+	long getDroppedClients();
+
+	/**
+	 * Return the number of clients disconnected because they stopped answering
+	 * pings.
+	 *
+	 * @return Number of dead clients found.
+	 */
+	long getDeadClients();
+
+	/**
+	 * Return the median time clients waited to be run after they were due,
+	 * during the last complete tick of the metrics.
+	 *
+	 * @return Median scheduling lag in microseconds.
+	 */
+	long getSchedulingLagP50();
+
+	/**
+	 * Return the 99th percentile of the time clients waited to be run during the
+	 * last complete tick.
+	 *
+	 * @return 99th percentile scheduling lag in microseconds.
+	 */
+	long getSchedulingLagP99();
+
+	/**
+	 * Return the 99.9th percentile of the time clients waited to be run during
+	 * the last complete tick.
+	 *
+	 * @return 99.9th percentile scheduling lag in microseconds.
+	 */
+	long getSchedulingLagP999();
+
+	/**
+	 * Return the longest time a client waited to be run during the last complete
+	 * tick.
+	 *
+	 * @return Longest scheduling lag in microseconds.
+	 */
+	long getSchedulingLagMax();
+
+	/**
+	 * Return the number of times a full queue dropped its oldest messages.
+	 *
+	 * @return Number of times DROP_OLDEST was applied.
+	 */
+	long getDropOldestCount();
+
+	/**
+	 * Return the number of times a full queue dropped the message being added.
+	 *
+	 * @return Number of times DROP_NEWEST was applied.
+	 */
+	long getDropNewestCount();
+
+	/**
+	 * Return the number of times a full queue had its client disconnected.
+	 *
+	 * @return Number of times DISCONNECT was applied.
+	 */
+	long getDisconnectCount();
+
+	/**
+	 * Return the number of times a full queue coalesced its messages.
+	 *
+	 * @return Number of times COALESCE was applied.
+	 */
+	long getCoalesceCount();
+
+	/**
+	 * Return the number of log records dropped because asynchronous logging fell
+	 * behind.
+	 *
+	 * @return Number of log records dropped.
+	 */
+	long getLogRecordsDropped();
+
+	/**
+	 * Return the number of read buffers held by connections waiting for the rest
+	 * of a message.
+	 *
+	 * @return Number of read buffers in use.
+	 */
+	int getReadBuffersBorrowed();
+
+	/**
+	 * Return the number of idle read buffers kept for reuse.
+	 *
+	 * @return Number of idle read buffers.
+	 */
+	int getReadBuffersIdle();
+
+	/**
+	 * Forget the scheduling lag measured during this tick and the last one.
+	 */
+	void resetSchedulingLag();
+}
@@ -0,0 +1,58 @@
+package edu.northeastern.ccs.im.server;
+
+/**
+ * Enumeration of what can be done when a client falls so far behind that its
+ * queue of outgoing messages is full.
+ */
+public enum SlowConsumerPolicy {
+	/** Throw away the oldest queued messages to make room for the new one. */
+	DROP_OLDEST("drop-oldest"),
+	/** Throw away the new message and keep the queued ones. */
+	DROP_NEWEST("drop-newest"),
+	/** Disconnect the client. */
+	DISCONNECT("disconnect"),
+	/**
+	 * Replace all of the queued messages with a single notice saying how many were
+	 * skipped, then queue the new message.
+	 */
+	COALESCE("coalesce");
+
+	/** Store the name used to select this policy. */
+	private String propertyValue;
+
+	/**
+	 * Define the policy and specify the name used to select it.
+	 *
+	 * @param value Name used to select this policy, as a String.
+	 */
+	private SlowConsumerPolicy(String value) {
+		propertyValue = value;
+	}
+
+	/**
+	 * Find the policy selected by the given name. Unknown or missing names select
+	 * dropping the oldest messages.
+	 *
+	 * @param value Name of the policy that was requested (may be null)
+	 * @return The matching policy.
+	 */
+	public static SlowConsumerPolicy fromName(String value) {
+		SlowConsumerPolicy result = DROP_OLDEST;
+		for (SlowConsumerPolicy policy : values()) {
+			if (policy.propertyValue.equalsIgnoreCase(value)) {
+				result = policy;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return a representation of this policy as a String.
+	 *
+	 * @return Name used to select this policy.
+	 */
+	@Override
+	public String toString() {
+		return propertyValue;
+	}
+}
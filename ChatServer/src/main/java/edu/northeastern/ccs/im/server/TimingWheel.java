@@ -0,0 +1,154 @@
+package edu.northeastern.ccs.im.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timing wheel watching the inactivity timers of every client. Each
+ * timer sits in the slot for the tick its deadline falls in, linked through
+ * the timer itself so the wheel allocates nothing per timer. A deadline more
+ * than a turn of the wheel away shares its slot with nearer ones, so each
+ * timer also remembers the tick it was placed for, and is passed over where it
+ * lies until the turn that tick falls in. Only then is it looked at: if its
+ * deadline has passed it is handed back with the others which ran out, and if
+ * its client has been active since, which pushed the deadline on, it is moved
+ * to the slot of its new deadline. Noting activity therefore never touches the
+ * wheel, and a timer is only moved about once per deadline, however many turns
+ * away that is. A deadline which is brought forward is noticed at the tick the
+ * timer was placed for.
+ *
+ * Timers may be added from any thread; the ticks must all come from one thread
+ * at a time.
+ */
+class TimingWheel {
+
+	/** Length of a tick in nanoseconds. */
+	private final long tickNanos;
+
+	/** Heads of the lists of timers in each slot. */
+	private final ClientTimer[] slots;
+
+	/** Mask turning a tick number into a slot index. */
+	private final int mask;
+
+	/** Time, from System.nanoTime, from which the ticks are counted. */
+	private final long origin;
+
+	/** Timers added since the last tick. */
+	private final Queue<ClientTimer> added;
+
+	/** Timers which ran out during the current tick; reused between ticks. */
+	private final List<ClientTimer> expired;
+
+	/** Number of the last tick processed. */
+	private long tick;
+
+	/**
+	 * Create an empty wheel.
+	 *
+	 * @param tickLength Length of a tick in nanoseconds.
+	 * @param slotCount  Least number of slots; rounded up to a power of two.
+	 */
+	TimingWheel(long tickLength, int slotCount) {
+		tickNanos = tickLength;
+		int size = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+		slots = new ClientTimer[size];
+		mask = size - 1;
+		origin = System.nanoTime();
+		added = new ConcurrentLinkedQueue<>();
+		expired = new ArrayList<>();
+	}
+
+	/**
+	 * Start watching a timer. It is placed on the wheel at the next tick.
+	 *
+	 * @param timer Timer to watch.
+	 */
+	void add(ClientTimer timer) {
+		added.add(timer);
+	}
+
+	/**
+	 * Process every tick up to the given time and return the timers which ran out.
+	 *
+	 * @param now Current time, from System.nanoTime.
+	 * @return Timers which ran out, valid until the next call.
+	 */
+	List<ClientTimer> advance(long now) {
+		expired.clear();
+		long target = (now - origin) / tickNanos;
+		// A wheel that fell behind by a whole turn only needs to look at each slot once
+		long first = Math.max(tick + 1, target - mask);
+		for (long current = first; current <= target; current++) {
+			processSlot(current, now);
+		}
+		tick = Math.max(tick, target);
+		for (ClientTimer timer = added.poll(); timer != null; timer = added.poll()) {
+			place(timer, now);
+		}
+		return expired;
+	}
+
+	/**
+	 * Take every timer placed for the given tick out of its slot and look at it,
+	 * leaving the timers placed for later turns of the wheel where they are.
+	 *
+	 * @param current Number of the tick being processed.
+	 * @param now     Current time, from System.nanoTime.
+	 */
+	private void processSlot(long current, long now) {
+		int index = (int) current & mask;
+		tick = current;
+		ClientTimer previous = null;
+		ClientTimer due = null;
+		ClientTimer timer = slots[index];
+		while (timer != null) {
+			ClientTimer next = timer.nextInSlot;
+			if (timer.dueTick > current) {
+				previous = timer;
+			} else {
+				if (previous == null) {
+					slots[index] = next;
+				} else {
+					previous.nextInSlot = next;
+				}
+				timer.nextInSlot = due;
+				due = timer;
+			}
+			timer = next;
+		}
+		// Only place them once the walk is over, as some may go back in this slot
+		while (due != null) {
+			ClientTimer next = due.nextInSlot;
+			due.nextInSlot = null;
+			place(due, now);
+			due = next;
+		}
+	}
+
+	/**
+	 * Put a timer in the slot of its deadline, or with the timers which ran out if
+	 * its deadline has passed. Cancelled timers are dropped.
+	 *
+	 * @param timer Timer to place.
+	 * @param now   Current time, from System.nanoTime.
+	 */
+	private void place(ClientTimer timer, long now) {
+		if (timer.isCancelled()) {
+			return;
+		}
+		long deadline = timer.getDeadline();
+		if (deadline - now <= 0) {
+			expired.add(timer);
+		} else {
+			// Round up, and never into a slot this tick has already processed
+			long due = Math.max(tick + 1, (deadline - origin + tickNanos - 1) / tickNanos);
+			int index = (int) due & mask;
+			timer.dueTick = due;
+			timer.nextInSlot = slots[index];
+			slots[index] = timer;
+		}
+	}
+}
@@ -2,10 +2,13 @@ package edu.northeastern.ccs.im;
 
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketOption;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
@@ -13,10 +16,20 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
 
 import edu.northeastern.ccs.im.server.ClientRunnable;
 import edu.northeastern.ccs.im.server.ServerConstants;
@@ -36,6 +49,25 @@ class Test {
     assert ("BCT".equals(bcst.toString()));
   }
 
+  /**
+   * Test direct messages, which carry a recipient between sender and text.
+   */
+  @org.junit.jupiter.api.Test
+  void testDirectMessage() {
+    Message dir = Message.makeDirectMessage("Thomas", "Joe", "psst");
+    assert (dir.isDirectMessage());
+    assert (!dir.isBroadcastMessage());
+    assert ("Joe".equals(dir.getRecipient()));
+    assert (dir.toString().equals("DIR 6 Thomas 3 Joe 4 psst"));
+    FrameParser parser = new FrameParser();
+    Message parsed = parser.next(dir.getEncoded());
+    assert (parsed.isDirectMessage());
+    assert ("Thomas".equals(parsed.getName()));
+    assert ("Joe".equals(parsed.getRecipient()));
+    assert ("psst".equals(parsed.getText()));
+    assert (parsed.getEncoded().equals(dir.getEncoded()));
+  }
+
   /**
    * Test Message.java methods except makeMessage and toString
    */
@@ -68,6 +100,9 @@ class Test {
     Message broadcast = Message.makeMessage("BCT", name, "I have tried lately to read " +
             "Shakespeare, and found it so intolerably dull that it nauseated me.");
     assert (broadcast.isBroadcastMessage());
+    Message ping = Message.makeMessage("PIN", name, null);
+    assert (ping.isPing() && ping.toString().equals("PIN 14 Charles Darwin 2 --"));
+    assert (Message.makeMessage("PON", name, null).isPong());
   }
 
   /**
@@ -83,6 +118,475 @@ class Test {
   }
 
 
+  /**
+   * Test that a message is encoded once and shared by everyone who sends it.
+   */
+  @org.junit.jupiter.api.Test
+  void testMessageEncodedOnce() {
+    Message bcst = Message.makeBroadcastMessage("Aristotle", "update: it is cold");
+    ByteBuffer first = bcst.getEncoded();
+    ByteBuffer second = bcst.getEncoded();
+    assert (first.isReadOnly());
+    assert (first != second);
+    assert (first.equals(second));
+    // Consuming one view leaves the other untouched
+    byte[] bytes = new byte[first.remaining()];
+    first.get(bytes);
+    assert (!first.hasRemaining());
+    assert (second.remaining() == bytes.length);
+    assert (bcst.toString().equals(new String(bytes)));
+  }
+
+
+  /**
+   * Test that output a slow client cannot take yet is kept instead of dropped.
+   */
+  @org.junit.jupiter.api.Test
+  void testNetworkConnectionKeepsUnsentOutput() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      NetworkConnection netConn = new NetworkConnection(server.accept());
+      Message msg = Message.makeBroadcastMessage("Thomas", new String(new char[60000]).replace('\0', 'x'));
+      int sent = 0;
+      // Keep sending until the socket buffers are full and output is held back
+      while (!netConn.hasPendingOutput()) {
+        assert (netConn.sendMessage(msg));
+        sent++;
+      }
+      // Once the client reads everything, the held back output follows
+      long expected = (long) sent * msg.getEncoded().remaining();
+      ByteBuffer buff = ByteBuffer.allocate(64 * 1024);
+      long received = 0;
+      while (received < expected) {
+        buff.clear();
+        received += client.read(buff);
+        assert (netConn.flush());
+      }
+      assert (received == expected);
+      assert (!netConn.hasPendingOutput());
+      client.close();
+      netConn.close();
+    }
+  }
+
+
+  /**
+   * Test that the selector pool spreads channels over its selectors, reports
+   * each channel once per enable, and is woken up by an enable on any of them.
+   */
+  @org.junit.jupiter.api.Test
+  void testSelectorPool() throws Exception {
+    SelectorPool pool = new SelectorPool(2);
+    int count = 4;
+    Semaphore[] fired = new Semaphore[count];
+    Set<String> threads = ConcurrentHashMap.newKeySet();
+    List<SocketChannel> clients = new ArrayList<>();
+    List<SocketChannel> accepted = new ArrayList<>();
+    List<SelectorPool.Registration> registrations = new ArrayList<>();
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      for (int i = 0; i < count; i++) {
+        clients.add(SocketChannel.open(server.getLocalAddress()));
+        SocketChannel channel = server.accept();
+        channel.configureBlocking(false);
+        accepted.add(channel);
+        Semaphore signal = new Semaphore(0);
+        fired[i] = signal;
+        registrations.add(pool.register(channel, SelectionKey.OP_READ, ops -> {
+          assert (ops == SelectionKey.OP_READ);
+          threads.add(Thread.currentThread().getName());
+          signal.release();
+        }));
+      }
+      for (SocketChannel client : clients) {
+        client.write(ByteBuffer.wrap("HLO 6 Thomas 2 --".getBytes()));
+      }
+      for (Semaphore signal : fired) {
+        assert (signal.tryAcquire(2, TimeUnit.SECONDS));
+      }
+      // The channels were shared out over both selectors
+      assert (threads.size() == 2);
+      // Nothing has been read, but interest is one-shot so nothing fires again
+      for (Semaphore signal : fired) {
+        assert (!signal.tryAcquire(100, TimeUnit.MILLISECONDS));
+      }
+      // Enabling the interest wakes up whichever selector is watching the channel
+      for (int i = 0; i < count; i++) {
+        registrations.get(i).enable(SelectionKey.OP_READ);
+        assert (fired[i].tryAcquire(2, TimeUnit.SECONDS));
+      }
+      // A cancelled channel is no longer reported, even once enabled again
+      registrations.get(0).cancel();
+      registrations.get(0).enable(SelectionKey.OP_READ);
+      assert (!fired[0].tryAcquire(100, TimeUnit.MILLISECONDS));
+    } finally {
+      for (SocketChannel client : clients) {
+        client.close();
+      }
+      for (SocketChannel channel : accepted) {
+        channel.close();
+      }
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Test that queued messages are written together, in order, and that the
+   * write budget tells the sender when to stop gathering.
+   */
+  @org.junit.jupiter.api.Test
+  void testNetworkConnectionGathersWrites() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      NetworkConnection netConn = new NetworkConnection(server.accept());
+      StringBuilder expected = new StringBuilder();
+      int queued = 0;
+      while (netConn.hasRoomForOutput()) {
+        Message msg = Message.makeBroadcastMessage("Thomas", "burst " + queued);
+        netConn.queueMessage(msg);
+        expected.append(msg);
+        queued++;
+      }
+      // Nothing is written until the connection is flushed
+      assert (queued > 50);
+      assert (netConn.hasPendingOutput());
+      assert (netConn.flush());
+      assert (netConn.hasRoomForOutput());
+      ByteBuffer buff = ByteBuffer.allocate(expected.length());
+      while (buff.hasRemaining()) {
+        client.read(buff);
+        assert (netConn.flush());
+      }
+      assert (expected.toString().equals(new String(buff.array())));
+      assert (!netConn.hasPendingOutput());
+      client.close();
+      netConn.close();
+    }
+  }
+
+
+  /**
+   * Test that a connection only holds a pooled read buffer while part of a
+   * message is waiting for the rest, and that the pool reuses what it is given.
+   */
+  @org.junit.jupiter.api.Test
+  void testPooledReadBuffers() throws Exception {
+    BufferPool pool = new BufferPool(16, 1);
+    ByteBuffer first = pool.acquire();
+    ByteBuffer second = pool.acquire();
+    assert (first.isDirect() && (pool.getBorrowed() == 2));
+    pool.release(first);
+    pool.release(second);
+    // Only one idle buffer is kept, and it is handed out again
+    assert ((pool.getIdle() == 1) && (pool.getBorrowed() == 0));
+    assert (pool.acquire() == first);
+    // Past its limit of direct buffers the pool lends heap buffers and drops them
+    BufferPool capped = new BufferPool(16, 4, 1);
+    ByteBuffer onlyDirect = capped.acquire();
+    ByteBuffer onHeap = capped.acquire();
+    assert (onlyDirect.isDirect() && !onHeap.isDirect());
+    capped.release(onHeap);
+    capped.release(onlyDirect);
+    assert ((capped.getIdle() == 1) && (capped.acquire() == onlyDirect));
+
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      NetworkConnection netConn = new NetworkConnection(server.accept(), true);
+      Iterator<Message> it = netConn.iterator();
+      client.write(ByteBuffer.wrap("HLO 6 Thomas 2 --".getBytes()));
+      assert (it.hasNext());
+      assert (it.next().isInitialization());
+      assert (!netConn.holdsReadBuffer());
+      client.write(ByteBuffer.wrap("BCT 6 Thomas 5 he".getBytes()));
+      assert (!it.hasNext());
+      assert (netConn.holdsReadBuffer());
+      client.write(ByteBuffer.wrap("llo".getBytes()));
+      assert (it.hasNext());
+      assert ("hello".equals(it.next().getText()));
+      assert (!netConn.holdsReadBuffer());
+      // A message larger than the buffer a blocking reader waits in still arrives
+      Message large = Message.makeBroadcastMessage("Thomas", new String(new char[2000]).replace('\0', 'x'));
+      client.write(large.getEncoded());
+      while (!it.hasNext()) {
+        assert (netConn.holdsReadBuffer());
+      }
+      assert (large.getText().equals(it.next().getText()));
+      assert (!netConn.holdsReadBuffer());
+      // Closing while part of a message is held gives the buffer back
+      int borrowed = BufferPool.getDefault().getBorrowed();
+      client.write(ByteBuffer.wrap("BCT 6 Thomas 5 he".getBytes()));
+      assert (!it.hasNext());
+      assert (BufferPool.getDefault().getBorrowed() == borrowed + 1);
+      netConn.close();
+      assert (!netConn.holdsReadBuffer());
+      assert (BufferPool.getDefault().getBorrowed() == borrowed);
+      client.close();
+    }
+  }
+
+
+  /**
+   * Test that the frame parser handles several messages and messages split
+   * across reads.
+   */
+  @org.junit.jupiter.api.Test
+  void testFrameParser() {
+    FrameParser parser = new FrameParser();
+    ByteBuffer buff = ByteBuffer.allocate(64);
+    buff.put("HLO 6 Thomas 2 --BCT 6 Thomas 11 hello wo".getBytes());
+    buff.flip();
+    Message hello = parser.next(buff);
+    assert (hello.isInitialization());
+    assert ("Thomas".equals(hello.getName()));
+    assert (hello.getText() == null);
+    // The broadcast has not fully arrived yet
+    assert (parser.next(buff) == null);
+    buff.compact();
+    buff.put("rldBYE 6 Thomas 0 ".getBytes());
+    buff.flip();
+    Message bcst = parser.next(buff);
+    assert (bcst.isBroadcastMessage());
+    assert ("hello world".equals(bcst.getText()));
+    assert (bcst.toString().equals("BCT 6 Thomas 11 hello world"));
+    Message quit = parser.next(buff);
+    assert (quit.terminate());
+    assert (!buff.hasRemaining());
+    assert (!parser.isMalformed());
+
+    FrameParser broken = new FrameParser();
+    ByteBuffer garbage = ByteBuffer.wrap("BCT x Thomas".getBytes());
+    assert (broken.next(garbage) == null);
+    assert (broken.isMalformed());
+  }
+
+  /**
+   * Test that binary frames carry text outside US-ASCII, arrive in pieces and
+   * mix with text frames on the same connection.
+   */
+  @org.junit.jupiter.api.Test
+  void testBinaryFraming() {
+    Message direct = Message.makeDirectMessage("Zo\u00eb", "Thomas", "na\u00efve caf\u00e9 \u2615");
+    ByteBuffer frame = direct.getEncoded(WireFormat.BINARY);
+    assert (frame.remaining() == direct.getEncodedLength(WireFormat.BINARY));
+    assert (WireFormat.isBinaryMarker(frame.get(0)));
+
+    FrameParser parser = new FrameParser();
+    ByteBuffer buff = ByteBuffer.allocate(128);
+    buff.put("HLO 6 Thomas 2 --".getBytes());
+    // Only part of the binary frame has arrived
+    ByteBuffer first = frame.duplicate();
+    first.limit(first.position() + 7);
+    buff.put(first);
+    buff.flip();
+    Message hello = parser.next(buff);
+    assert (hello.getWireFormat() == WireFormat.TEXT);
+    assert (parser.next(buff) == null);
+    buff.compact();
+    frame.position(7);
+    buff.put(frame);
+    buff.flip();
+    Message parsed = parser.next(buff);
+    assert (parsed.getWireFormat() == WireFormat.BINARY);
+    assert (parsed.isDirectMessage());
+    assert ("Zo\u00eb".equals(parsed.getName()));
+    assert ("Thomas".equals(parsed.getRecipient()));
+    assert ("na\u00efve caf\u00e9 \u2615".equals(parsed.getText()));
+    assert (!buff.hasRemaining());
+    // Passing it on to a binary client reuses the bytes it arrived as
+    assert (parsed.getEncoded(WireFormat.BINARY).equals(direct.getEncoded(WireFormat.BINARY)));
+
+    // Messages without text, and journal records, survive the round trip
+    Message quit = Message.fromEncoded(Message.makeQuitMessage("Zo\u00eb").getEncoded(WireFormat.BINARY));
+    assert (quit.terminate());
+    assert ("Zo\u00eb".equals(quit.getName()));
+    assert (quit.getText() == null);
+
+    FrameParser broken = new FrameParser();
+    ByteBuffer future = ByteBuffer.wrap(new byte[] { (byte) 0xFF, 0, 0, 0, 0, 0 });
+    assert (broken.next(future) == null);
+    assert (broken.isMalformed());
+  }
+
+
+  /**
+   * Test that large frames are compressed once for clients speaking DEFLATE and
+   * inflate back into the same message, while short ones go out uncompressed.
+   */
+  @org.junit.jupiter.api.Test
+  void testCompressedFraming() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      text.append("the weather is lovely today ");
+    }
+    Message bcst = Message.makeBroadcastMessage("Thomas", text.toString());
+    ByteBuffer packed = bcst.getEncoded(WireFormat.DEFLATE);
+    assert (packed.get(0) == (byte) 0xF2);
+    assert (packed.remaining() < bcst.getEncodedLength(WireFormat.BINARY) / 4);
+    assert (packed.equals(bcst.getEncoded(WireFormat.DEFLATE)));
+
+    FrameParser parser = new FrameParser();
+    ByteBuffer buff = ByteBuffer.allocate(4096);
+    ByteBuffer first = packed.duplicate();
+    first.limit(first.position() + 20);
+    buff.put(first);
+    buff.flip();
+    assert (parser.next(buff) == null);
+    buff.compact();
+    packed.position(20);
+    buff.put(packed);
+    buff.put(Message.makeSimpleLoginMessage("Zo\u00eb").getEncoded(WireFormat.DEFLATE));
+    buff.flip();
+    Message parsed = parser.next(buff);
+    assert (parsed.getWireFormat() == WireFormat.DEFLATE);
+    assert (text.toString().equals(parsed.getText()));
+    assert (parsed.getEncoded(WireFormat.BINARY).equals(bcst.getEncoded(WireFormat.BINARY)));
+    // Hello is always compressed, so the client learns the server speaks it;
+    // the parser's one inflater is reset for it
+    Message hello = parser.next(buff);
+    assert (hello.isInitialization() && (hello.getWireFormat() == WireFormat.DEFLATE));
+    assert ("Zo\u00eb".equals(hello.getName()));
+    assert (!buff.hasRemaining());
+    parser.close();
+
+    Message shortBcst = Message.makeBroadcastMessage("Thomas", "hi");
+    assert (shortBcst.getEncoded(WireFormat.DEFLATE).equals(shortBcst.getEncoded(WireFormat.BINARY)));
+
+    // Arguments which inflate to more than their lengths say are refused
+    ByteBuffer lying = ByteBuffer.allocate(4096);
+    lying.put(bcst.getEncoded(WireFormat.DEFLATE));
+    lying.putInt(2 + 4, 10);
+    lying.flip();
+    FrameParser broken = new FrameParser();
+    assert (broken.next(lying) == null);
+    assert (broken.isMalformed());
+    broken.close();
+  }
+
+  /**
+   * Test that the asynchronous log handler writes every record, in order, on
+   * its own thread.
+   */
+  @org.junit.jupiter.api.Test
+  void testAsyncLogHandler() {
+    List<String> written = new CopyOnWriteArrayList<>();
+    Handler target = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        written.add(record.getMessage());
+      }
+
+      @Override
+      public void flush() {
+        // nothing to do here
+      }
+
+      @Override
+      public void close() {
+        // nothing to do here
+      }
+    };
+    AsyncLogHandler handler = new AsyncLogHandler(new Handler[] { target }, 16,
+        AsyncLogHandler.OverflowPolicy.BLOCK);
+    for (int i = 0; i < 100; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i));
+    }
+    handler.flush();
+    assert (written.size() == 100);
+    assert ("record 99".equals(written.get(99)));
+    handler.close();
+    // Closing writes whatever was published before it, without a flush
+    for (int round = 0; round < 100; round++) {
+      written.clear();
+      handler = new AsyncLogHandler(new Handler[] { target }, 16, AsyncLogHandler.OverflowPolicy.BLOCK);
+      for (int i = 0; i < 10; i++) {
+        handler.publish(new LogRecord(Level.INFO, "record " + i));
+      }
+      handler.close();
+      assert (written.size() == 10);
+    }
+    // Once the writer has stopped, a full ring drops records instead of blocking
+    for (int i = 0; i < 100; i++) {
+      handler.publish(new LogRecord(Level.INFO, "record " + i));
+    }
+    assert (handler.getDropped() == 100 - 16);
+
+    RingBuffer<Integer> ring = new RingBuffer<>(3);
+    assert (ring.capacity() == 4);
+    for (int i = 0; i < 4; i++) {
+      assert (ring.offer(i));
+    }
+    assert (!ring.offer(4));
+    assert (ring.poll() == 0);
+    assert (ring.offer(4));
+    List<Integer> drained = new ArrayList<>();
+    assert (ring.drainTo(drained, 10) == 4);
+    assert (drained.equals(Arrays.asList(1, 2, 3, 4)));
+    assert (ring.isEmpty());
+  }
+
+  /**
+   * Test that messages below a category's level are never built.
+   */
+  @org.junit.jupiter.api.Test
+  void testLoggerLevelGating() {
+    int[] built = new int[1];
+    ChatLogger.setLevel(ChatLogger.Category.CLIENT, Level.INFO);
+    assert (!ChatLogger.isEnabled(ChatLogger.Category.CLIENT, Level.FINE));
+    ChatLogger.debug(ChatLogger.Category.CLIENT, () -> "built " + (++built[0]));
+    assert (built[0] == 0);
+    ChatLogger.setLevel(ChatLogger.Category.CLIENT, Level.FINE);
+    ChatLogger.debug(ChatLogger.Category.CLIENT, () -> "built " + (++built[0]));
+    assert (built[0] == 1);
+    ChatLogger.setLevel(ChatLogger.Category.CLIENT, Level.OFF);
+    ChatLogger.info(ChatLogger.Category.CLIENT, () -> "built " + (++built[0]));
+    assert (built[0] == 1);
+    ChatLogger.setLevel(ChatLogger.Category.CLIENT, Level.INFO);
+  }
+
+  /**
+   * Test that a category configured with an unknown level still logs at INFO.
+   * The categories read their levels once, so this loads a fresh copy of the
+   * logger.
+   */
+  @org.junit.jupiter.api.Test
+  void testLoggerUnknownLevel() throws Exception {
+    System.setProperty("chatlogger.level.client", "VERBOSE");
+    URL classes = ChatLogger.class.getProtectionDomain().getCodeSource().getLocation();
+    try (URLClassLoader loader = new URLClassLoader(new URL[] { classes }, null)) {
+      Class<?> logger = loader.loadClass(ChatLogger.class.getName());
+      Class<?> category = loader.loadClass(ChatLogger.Category.class.getName());
+      Object client = category.getField("CLIENT").get(null);
+      Method isEnabled = logger.getMethod("isEnabled", category, Level.class);
+      assert ((Boolean) isEnabled.invoke(null, client, Level.INFO));
+      assert (!(Boolean) isEnabled.invoke(null, client, Level.FINE));
+    } finally {
+      System.clearProperty("chatlogger.level.client");
+    }
+  }
+
+  /**
+   * Test that the histogram's percentiles are within its precision.
+   */
+  @org.junit.jupiter.api.Test
+  void testHistogram() {
+    Histogram histogram = new Histogram();
+    assert (histogram.getPercentile(99) == 0);
+    for (long i = 1; i <= 100000; i++) {
+      histogram.record(i * 1000);
+    }
+    assert (histogram.getCount() == 100000);
+    assert (histogram.getMax() == 100000000L);
+    assert (Math.abs(histogram.getPercentile(50) - 50000000L) < 50000000L / 50);
+    assert (Math.abs(histogram.getPercentile(99.9) - 99900000L) < 99900000L / 50);
+    assert (histogram.getPercentile(100) == 100000000L);
+    histogram.reset();
+    assert (histogram.getCount() == 0);
+  }
+
+
   /**
    * Test NetworkConnection
    */
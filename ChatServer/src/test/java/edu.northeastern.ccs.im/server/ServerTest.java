@@ -1,4 +1,578 @@
 package edu.northeastern.ccs.im.server;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import edu.northeastern.ccs.im.Message;
+import edu.northeastern.ccs.im.NetworkConnection;
+import edu.northeastern.ccs.im.WireFormat;
+
 public class ServerTest {
+
+  /**
+   * Test that the reactor runs a client as soon as it sends its HELLO message.
+   */
+  @org.junit.jupiter.api.Test
+  void testReactorRunsClientOnDemand() throws Exception {
+    ExecutorService workers = Executors.newFixedThreadPool(2);
+    ClientReactor reactor = new ClientReactor(workers);
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      SocketChannel accepted = server.accept();
+      ClientRunnable tt = new ClientRunnable(new NetworkConnection(accepted));
+      reactor.register(tt);
+      client.write(ByteBuffer.wrap("HLO 6 Thomas 2 --".getBytes()));
+      // Look the moment the client counts as initialized: it must be found by then
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+      while (!tt.isInitialized() && (System.nanoTime() - deadline < 0)) {
+        Thread.yield();
+      }
+      assert (tt.isInitialized());
+      assert (Prattle.findClient("thomas") == tt);
+      assert ("Thomas".equals(tt.getName()));
+      assert (Prattle.findClient(tt.getUserId()) == tt);
+      tt.terminateClient();
+      assert (Prattle.findClient("Thomas") == null);
+      client.close();
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Test that a single run handles every message the client has sent.
+   */
+  @org.junit.jupiter.api.Test
+  void testClientHandlesAllWaitingMessages() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      ClientRunnable tt = new ClientRunnable(new NetworkConnection(server.accept()));
+      client.write(ByteBuffer.wrap(
+          "HLO 6 Thomas 2 --BCT 6 Thomas 2 hiBCT 6 Thomas 5 againBYE 6 Thomas 2 --".getBytes()));
+      for (int i = 0; (i < 100) && !tt.isInitialized(); i++) {
+        Thread.sleep(20);
+        tt.run();
+      }
+      assert (tt.isInitialized());
+      // Both broadcasts and the quit are handled in one go
+      tt.run();
+      ByteBuffer buff = ByteBuffer.allocate(1024);
+      while (client.read(buff) >= 0) {
+        // Keep reading until the server hangs up
+      }
+      buff.flip();
+      // Being logged in, the client also receives its own broadcasts
+      assert ("BCT 6 Thomas 2 hiBCT 6 Thomas 5 againBYE 6 Thomas 2 --"
+          .equals(new String(buff.array(), 0, buff.limit())));
+      client.close();
+    }
+  }
+
+  /**
+   * Test that a client on threads of its own logs in, is sent its messages and
+   * is terminated once it quits.
+   */
+  @org.junit.jupiter.api.Test
+  void testClientOnOwnThreads() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      ClientRunnable tt = new ClientRunnable(new NetworkConnection(server.accept(), true));
+      tt.startThreads();
+      client.write(ByteBuffer.wrap("HLO 5 Alice 2 --BCT 5 Alice 2 hiBYE 5 Alice 2 --".getBytes()));
+      // Wait for the server to hang up, but not forever
+      client.socket().setSoTimeout(5000);
+      byte[] received = readAll(client.socket().getInputStream());
+      assert ("BCT 5 Alice 2 hiBYE 5 Alice 2 --".equals(new String(received, StandardCharsets.US_ASCII)));
+      // The connection is closed just before the client is forgotten
+      for (int i = 0; (i < 100) && (Prattle.findClient("Alice") != null); i++) {
+        Thread.sleep(10);
+      }
+      assert (Prattle.findClient("Alice") == null);
+      client.close();
+    }
+  }
+
+  /**
+   * Test that text a binary client broadcasts which US-ASCII cannot show still
+   * reaches a text client in frames it can parse.
+   */
+  @org.junit.jupiter.api.Test
+  void testBinaryBroadcastToTextClient() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel textSide = SocketChannel.open(server.getLocalAddress());
+      ClientRunnable reader = new ClientRunnable(new NetworkConnection(server.accept()));
+      SocketChannel binarySide = SocketChannel.open(server.getLocalAddress());
+      ClientRunnable writer = new ClientRunnable(new NetworkConnection(server.accept()));
+      textSide.write(ByteBuffer.wrap("HLO 6 Thomas 2 --".getBytes()));
+      binarySide.write(Message.makeSimpleLoginMessage("Zoe").getEncoded(WireFormat.BINARY));
+      for (int i = 0; (i < 100) && !(reader.isInitialized() && writer.isInitialized()); i++) {
+        Thread.sleep(20);
+        reader.run();
+        writer.run();
+      }
+      assert (reader.isInitialized() && writer.isInitialized());
+      // An emoji is two chars but only one byte once it has become a '?'
+      binarySide.write(Message.makeBroadcastMessage("Zoe", "x \ud83d\ude00 y").getEncoded(WireFormat.BINARY));
+      binarySide.write(Message.makeBroadcastMessage("Zoe", "caf\u00e9").getEncoded(WireFormat.BINARY));
+      for (int i = 0; (i < 100) && (reader.getQueueDepth() < 2); i++) {
+        Thread.sleep(20);
+        writer.run();
+      }
+      textSide.write(ByteBuffer.wrap("BYE 6 Thomas 2 --".getBytes()));
+      for (int i = 0; (i < 100) && (Prattle.findClient("Thomas") == reader); i++) {
+        Thread.sleep(20);
+        reader.run();
+      }
+      writer.terminateClient();
+      ByteBuffer buff = ByteBuffer.allocate(1024);
+      while (textSide.read(buff) >= 0) {
+        // Keep reading until the server hangs up
+      }
+      buff.flip();
+      Message emoji = Message.fromEncoded(buff);
+      Message accent = Message.fromEncoded(buff);
+      Message quit = Message.fromEncoded(buff);
+      assert ("x ? y".equals(emoji.getText()) && "Zoe".equals(emoji.getName()));
+      assert ("caf?".equals(accent.getText()));
+      assert (quit.terminate() && !buff.hasRemaining());
+      textSide.close();
+      binarySide.close();
+    }
+  }
+
+  /**
+   * Test that a client's pings are answered and that a client which leaves too
+   * many of the server's pings unanswered is disconnected.
+   */
+  @org.junit.jupiter.api.Test
+  void testHeartbeats() throws Exception {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      ClientRunnable tt = new ClientRunnable(new NetworkConnection(server.accept()));
+      client.write(ByteBuffer.wrap("HLO 6 Thomas 2 --PIN 6 Thomas 2 --".getBytes()));
+      for (int i = 0; (i < 100) && !tt.isInitialized(); i++) {
+        Thread.sleep(20);
+        tt.run();
+      }
+      assert (tt.isInitialized());
+      tt.run();
+      Message ping = Message.makePingMessage(ServerConstants.SERVER_NAME);
+      for (int i = 0; i <= ServerConstants.HEARTBEAT_MISSES; i++) {
+        tt.heartbeat(ping);
+      }
+      tt.run();
+      ByteBuffer buff = ByteBuffer.allocate(1024);
+      while (client.read(buff) >= 0) {
+        // Keep reading until the server hangs up
+      }
+      buff.flip();
+      StringBuilder expected = new StringBuilder("PON 7 Prattle 2 --");
+      for (int i = 0; i < ServerConstants.HEARTBEAT_MISSES; i++) {
+        expected.append("PIN 7 Prattle 2 --");
+      }
+      assert (expected.toString().equals(new String(buff.array(), 0, buff.limit())));
+      client.close();
+    }
+  }
+
+  /**
+   * Test each of the policies applied when a client's queue is full.
+   */
+  @org.junit.jupiter.api.Test
+  void testOutboundQueuePolicies() {
+    Message first = Message.makeBroadcastMessage("Thomas", "one");
+    Message second = Message.makeBroadcastMessage("Thomas", "two");
+    Message third = Message.makeBroadcastMessage("Thomas", "three");
+
+    OutboundQueue oldest = new OutboundQueue(2, Long.MAX_VALUE, SlowConsumerPolicy.DROP_OLDEST);
+    long dropped = OutboundQueue.getPolicyCount(SlowConsumerPolicy.DROP_OLDEST);
+    assert (oldest.offer(first) && oldest.offer(second) && oldest.offer(third));
+    assert (oldest.size() == 2);
+    assert (oldest.poll() == second);
+    assert (oldest.byteSize() == third.getEncodedLength());
+    assert (OutboundQueue.getPolicyCount(SlowConsumerPolicy.DROP_OLDEST) == dropped + 1);
+
+    OutboundQueue newest = new OutboundQueue(2, Long.MAX_VALUE, SlowConsumerPolicy.DROP_NEWEST);
+    assert (newest.offer(first) && newest.offer(second) && newest.offer(third));
+    assert (newest.poll() == first);
+    assert (newest.poll() == second);
+    assert (newest.isEmpty());
+
+    // The byte limit applies as well as the message limit
+    OutboundQueue disconnect = new OutboundQueue(10, first.getEncodedLength(), SlowConsumerPolicy.DISCONNECT);
+    assert (disconnect.offer(first));
+    assert (!disconnect.offer(second));
+
+    OutboundQueue coalesce = new OutboundQueue(2, Long.MAX_VALUE, SlowConsumerPolicy.COALESCE);
+    assert (coalesce.offer(first) && coalesce.offer(second) && coalesce.offer(third));
+    Message notice = coalesce.poll();
+    assert (notice.getText().startsWith("2 messages"));
+    assert (coalesce.poll() == third);
+    assert (coalesce.isEmpty() && (coalesce.byteSize() == 0));
+    // A message that does not fit even beside the notice is counted in it
+    OutboundQueue single = new OutboundQueue(1, Long.MAX_VALUE, SlowConsumerPolicy.COALESCE);
+    assert (single.offer(first) && single.offer(second) && single.offer(third));
+    assert (single.size() == 1);
+    assert (single.poll().getText().startsWith("3 messages"));
+
+    // A message larger than the whole queue is turned away without emptying it,
+    // and still counted against the policy
+    Message huge = Message.makeBroadcastMessage("Thomas", new String(new char[100]).replace('\0', 'x'));
+    long limit = 2 * first.getEncodedLength();
+    for (SlowConsumerPolicy which : SlowConsumerPolicy.values()) {
+      OutboundQueue bounded = new OutboundQueue(10, limit, which);
+      long counted = OutboundQueue.getPolicyCount(which);
+      assert (bounded.offer(first));
+      assert (bounded.offer(huge) == (which != SlowConsumerPolicy.DISCONNECT));
+      assert ((bounded.size() == 1) && (bounded.poll() == first));
+      assert (OutboundQueue.getPolicyCount(which) == counted + 1);
+    }
+
+    // Messages are counted in the framing the client is sent
+    OutboundQueue binary = new OutboundQueue(10, Long.MAX_VALUE, SlowConsumerPolicy.DROP_NEWEST);
+    assert (binary.offer(first));
+    binary.setWireFormat(WireFormat.BINARY);
+    assert (binary.byteSize() == first.getEncodedLength(WireFormat.BINARY));
+    assert (binary.offer(second));
+    assert (binary.poll() == first);
+    assert (binary.byteSize() == second.getEncodedLength(WireFormat.BINARY));
+  }
+
+  /**
+   * Test that two clients logged in with the same name do not lose each other's
+   * entry when one of them leaves.
+   */
+  @org.junit.jupiter.api.Test
+  void testClientRegistryDuplicateNames() throws Exception {
+    ClientRegistry registry = new ClientRegistry();
+    Field userId = ClientRunnable.class.getDeclaredField("userId");
+    userId.setAccessible(true);
+    ClientRunnable first = new ClientRunnable(null);
+    ClientRunnable second = new ClientRunnable(null);
+    first.setName("Thomas");
+    second.setName("thomas");
+    userId.setInt(first, 1);
+    userId.setInt(second, 2);
+    registry.add(first);
+    registry.add(second);
+    registry.login(first);
+    registry.login(second);
+    assert (registry.findByName("THOMAS") == second);
+    assert (registry.remove(second));
+    assert (registry.findByName("Thomas") == first);
+    assert (registry.findById(1) == first);
+    registry.add(second);
+    registry.login(second);
+    assert (registry.remove(first));
+    assert (registry.findByName("Thomas") == second);
+    assert (registry.remove(second));
+    assert ((registry.findByName("Thomas") == null) && registry.loggedIn().isEmpty());
+  }
+
+  /**
+   * Test joining and leaving groups.
+   */
+  @org.junit.jupiter.api.Test
+  void testGroupRegistry() {
+    GroupRegistry registry = new GroupRegistry();
+    ClientRunnable thomas = new ClientRunnable(null);
+    ClientRunnable joe = new ClientRunnable(null);
+    registry.join("Room", thomas);
+    registry.join("room", joe);
+    assert (registry.isMember("ROOM", thomas));
+    assert (registry.members("room").size() == 2);
+    assert (registry.leave("room", thomas));
+    assert (!registry.leave("room", thomas));
+    assert (!registry.isMember("room", thomas));
+    assert (registry.leave("room", joe));
+    assert (registry.members("room").isEmpty());
+    assert (GroupRegistry.key("Room").equals(GroupRegistry.key("ROOM")));
+  }
+
+  /**
+   * Test that the timing wheel hands back only the timers which have run out,
+   * follows deadlines pushed on by activity and drops cancelled timers.
+   */
+  @org.junit.jupiter.api.Test
+  void testTimingWheel() {
+    long tick = TimeUnit.MILLISECONDS.toNanos(10);
+    TimingWheel wheel = new TimingWheel(tick, 8);
+    int[] woken = new int[1];
+    ClientTimer idle = new ClientTimer(() -> woken[0]++);
+    ClientTimer busy = new ClientTimer();
+    ClientTimer gone = new ClientTimer();
+    ClientTimer far = new ClientTimer();
+    idle.expireAfter(5 * tick);
+    busy.expireAfter(5 * tick);
+    gone.expireAfter(5 * tick);
+    far.expireAfter(30 * tick);
+    wheel.add(idle);
+    wheel.add(busy);
+    wheel.add(gone);
+    wheel.add(far);
+    long now = System.nanoTime();
+    assert (wheel.advance(now).isEmpty());
+    long placed = far.dueTick;
+    // Activity pushes the deadline past a whole turn of the wheel
+    busy.expireAfter(20 * tick);
+    gone.cancel();
+    List<ClientTimer> expired = wheel.advance(now + 6 * tick);
+    assert ((expired.size() == 1) && (expired.get(0) == idle));
+    expired.get(0).expire();
+    assert (woken[0] == 1);
+    assert (wheel.advance(now + 12 * tick).isEmpty());
+    expired = wheel.advance(now + 21 * tick);
+    assert ((expired.size() == 1) && (expired.get(0) == busy));
+    // A timer several turns away stays where it was placed until its turn comes
+    assert (far.dueTick == placed);
+    expired = wheel.advance(now + 40 * tick);
+    assert ((expired.size() == 1) && (expired.get(0) == far));
+    assert (wheel.advance(now + 80 * tick).isEmpty());
+  }
+
+  /**
+   * Test that the journal rotates its segments and carries on after the last
+   * record when it is opened again.
+   */
+  @org.junit.jupiter.api.Test
+  void testMessageJournal() throws Exception {
+    Path dir = Files.createTempDirectory("journal");
+    MessageJournal journal = new MessageJournal(dir, 0, FsyncPolicy.ALWAYS, 0, 1024);
+    for (int i = 0; i < 40000; i++) {
+      journal.append(i, Message.makeBroadcastMessage("Thomas", "message " + i));
+    }
+    journal.flush();
+    assert (journal.getNextSequence() == 40000);
+    journal.close();
+    List<Path> segments = MessageJournal.listSegments(dir);
+    assert (segments.size() == 2);
+    assert (MessageJournal.firstSequence(segments.get(0)) == 0);
+
+    journal = new MessageJournal(dir, 0, FsyncPolicy.NEVER, 0, 1024);
+    assert (journal.getNextSequence() == 40000);
+    // Messages handed over out of order are written in sequence order
+    journal.append(40001, Message.makeBroadcastMessage("Thomas", "second"));
+    journal.append(40000, Message.makeBroadcastMessage("Thomas", "first"));
+    journal.close();
+    journal = new MessageJournal(dir, 0, FsyncPolicy.INTERVAL, 1000, 1024);
+    assert (journal.getNextSequence() == 40002);
+    JournalCursor cursor = journal.cursor(40000, 0);
+    assert (cursor.next() && "first".equals(Message.fromEncoded(cursor.frame()).getText()));
+    assert (cursor.next() && "second".equals(Message.fromEncoded(cursor.frame()).getText()));
+    journal.close();
+    // With its writer gone, a full journal drops messages instead of blocking
+    int accepted = 0;
+    for (int i = 0; i < 2048; i++) {
+      accepted += journal.append(40002 + i, Message.makeBroadcastMessage("Thomas", "lost " + i)) ? 1 : 0;
+    }
+    assert (journal.isDisabled());
+    assert (accepted == 1024);
+  }
+
+  /**
+   * Test that the history replays recent messages from memory and older ones from
+   * the journal, including after a restart.
+   */
+  @org.junit.jupiter.api.Test
+  void testMessageHistory() throws Exception {
+    Path dir = Files.createTempDirectory("history");
+    MessageJournal journal = new MessageJournal(dir, 0, FsyncPolicy.NEVER, 0, 1024);
+    MessageHistory history = new MessageHistory(4, journal);
+    for (int i = 0; i < 1000; i++) {
+      history.record(Message.makeBroadcastMessage("Thomas", "message " + i));
+    }
+    journal.flush();
+    // The last four come from memory, the others from the journal
+    MessageHistory.Replay replay = history.replay(600, 0);
+    for (int i = 400; i < 1000; i++) {
+      assert (("message " + i).equals(replay.next().getText()));
+    }
+    assert (replay.next() == null);
+    assert (history.replay(10, 60000).next().getText().equals("message 990"));
+    // A replay stops at what the journal has yet to write rather than skip it
+    for (int i = 1000; i < 1200; i++) {
+      history.record(Message.makeBroadcastMessage("Thomas", "message " + i));
+    }
+    replay = history.replay(200, 0);
+    for (int i = 1000; i < 1200; i++) {
+      Message msg = replay.next();
+      if (msg == null) {
+        assert (replay.isWaiting());
+        journal.flush();
+        msg = replay.next();
+      }
+      assert (("message " + i).equals(msg.getText()));
+    }
+    assert (replay.next() == null);
+    assert (!replay.isWaiting());
+    journal.close();
+
+    journal = new MessageJournal(dir, 0, FsyncPolicy.NEVER, 0, 1024);
+    history = new MessageHistory(4, journal);
+    replay = history.replay(3, 0);
+    assert ("message 1197".equals(replay.next().getText()));
+    assert ("message 1198".equals(replay.next().getText()));
+    assert ("message 1199".equals(replay.next().getText()));
+    assert (replay.next() == null);
+    journal.close();
+
+    history = new MessageHistory(4, null);
+    for (int i = 0; i < 10; i++) {
+      history.record(Message.makeBroadcastMessage("Thomas", "message " + i));
+    }
+    // Without a journal only what is still in memory can be replayed
+    replay = history.replay(8, 0);
+    assert (replay.getEnd() == 10);
+    assert ("message 6".equals(replay.next().getText()));
+
+    // A broadcast already in the replay a client was given is not queued again
+    ClientRunnable client = new ClientRunnable(null);
+    Field replayed = ClientRunnable.class.getDeclaredField("replayed");
+    replayed.setAccessible(true);
+    replayed.setLong(client, replay.getEnd());
+    client.enqueueBroadcast(Message.makeBroadcastMessage("Thomas", "message 9"), 9);
+    assert (client.getQueueDepth() == 0);
+    client.enqueueBroadcast(Message.makeBroadcastMessage("Thomas", "message 10"), 10);
+    client.enqueueBroadcast(Message.makeBroadcastMessage("Thomas", "not recorded"), -1);
+    assert (client.getQueueDepth() == 2);
+    // One recorded while the client is still taking its replay is left to the replay
+    client = new ClientRunnable(null);
+    client.enqueueBroadcast(Message.makeBroadcastMessage("Thomas", "message 9"), 9);
+    assert (client.getQueueDepth() == 0);
+  }
+
+  /**
+   * Test that mail kept for an offline user is delivered in order, picks up
+   * where an interrupted delivery stopped, is compacted once mostly delivered,
+   * and is deleted once delivered.
+   */
+  @org.junit.jupiter.api.Test
+  void testOfflineMailboxes() throws Exception {
+    Path dir = Files.createTempDirectory("mail");
+    OfflineMailboxes mailboxes = new OfflineMailboxes(dir, 120);
+    for (int i = 0; i < 3; i++) {
+      assert (mailboxes.store(Message.makeDirectMessage("Thomas", "Joe", "note " + i)));
+    }
+    assert (mailboxes.store(Message.makeDirectMessage("Thomas", "../Ann", "hi")));
+    assert ("..%2Fann".equals(OfflineMailboxes.key("../Ann")));
+    // The mailbox is full
+    assert (!mailboxes.store(Message.makeDirectMessage("Thomas", "Joe", "too much text for the mailbox")));
+
+    OfflineMailboxes.Delivery delivery = mailboxes.deliver("JOE");
+    // Only one delivery of a mailbox is open at once
+    assert (mailboxes.deliver("joe") == null);
+    assert ("note 0".equals(delivery.next().getText()));
+    delivery.close();
+    assert (Files.exists(dir.resolve("joe.off")));
+    // What has been delivered no longer counts towards the limit
+    assert (mailboxes.store(Message.makeDirectMessage("Thomas", "Joe", "note 3")));
+    delivery = mailboxes.deliver("joe");
+    assert ("note 1".equals(delivery.next().getText()));
+    assert ("note 2".equals(delivery.next().getText()));
+    long size = Files.size(dir.resolve("joe.box"));
+    delivery.close();
+    // Three of the four notes were delivered, so only the last one is kept
+    assert (Files.size(dir.resolve("joe.box")) == size / 4);
+    assert (!Files.exists(dir.resolve("joe.off")));
+    delivery = mailboxes.deliver("joe");
+    Message last = delivery.next();
+    assert ("note 3".equals(last.getText()));
+    assert ("Joe".equals(last.getRecipient()));
+    assert (delivery.next() == null);
+    assert (mailboxes.deliver("Joe") == null);
+    assert ("hi".equals(mailboxes.deliver("../ann").next().getText()));
+
+    // A damaged record ends the mailbox instead of failing the delivery
+    assert (mailboxes.store(Message.makeDirectMessage("Thomas", "Sam", "before")));
+    Files.write(dir.resolve("sam.box"), new byte[] { -1, -1, -1, -2, 0, 0 }, StandardOpenOption.APPEND);
+    delivery = mailboxes.deliver("Sam");
+    assert ("before".equals(delivery.next().getText()));
+    assert (delivery.next() == null);
+    assert (mailboxes.deliver("Sam") == null);
+  }
+
+  /**
+   * Test that the metrics are counted and served as text.
+   */
+  @org.junit.jupiter.api.Test
+  void testMetricsEndpoint() throws Exception {
+    ClientRegistry registry = new ClientRegistry();
+    ClientRunnable client = new ClientRunnable(null);
+    registry.add(client);
+    client.enqueueMessage(Message.makeBroadcastMessage("Thomas", "queued"));
+    ServerMetrics metrics = new ServerMetrics(registry);
+    assert ((metrics.getConnectedClients() == 1) && (metrics.getLongestQueue() == 1));
+    // Only what the socket has taken counts as written or sent
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel reader = SocketChannel.open(server.getLocalAddress());
+      NetworkConnection connection = new NetworkConnection(server.accept(), true);
+      Message counted = Message.makeBroadcastMessage("Thomas", "counted");
+      long written = metrics.getBytesWritten();
+      long sent = metrics.getMessagesOut();
+      connection.queueMessage(counted);
+      assert ((metrics.getBytesWritten() == written) && (metrics.getMessagesOut() == sent));
+      assert (connection.flush());
+      assert (metrics.getBytesWritten() >= written + counted.getEncodedLength());
+      assert (metrics.getMessagesOut() >= sent + 1);
+      connection.close();
+      reader.close();
+    }
+    // The scheduling lag is reported for the last complete tick only
+    ServerMetrics.recordSchedulingLag(TimeUnit.SECONDS.toNanos(5));
+    metrics.tick();
+    assert (metrics.getSchedulingLagMax() >= TimeUnit.MILLISECONDS.toMicros(4900));
+    metrics.tick();
+    assert (metrics.getSchedulingLagMax() < TimeUnit.MILLISECONDS.toMicros(4900));
+
+    MetricsEndpoint endpoint = new MetricsEndpoint(metrics, 0);
+    try {
+      URL url = new URL("http://127.0.0.1:" + endpoint.getPort() + MetricsEndpoint.PATH);
+      String text;
+      try (InputStream in = url.openStream()) {
+        text = new String(readAll(in), StandardCharsets.UTF_8);
+      }
+      assert (text.contains("prattle_connected_clients 1\n"));
+      assert (text.contains("prattle_queued_messages 1\n"));
+      assert (text.contains("prattle_queue_policy_total{policy=\"coalesce\"}"));
+    } finally {
+      endpoint.close();
+    }
+  }
+
+  /**
+   * Read everything from a stream.
+   *
+   * @param in Stream to be read.
+   * @return Bytes read.
+   * @throws IOException Exception thrown if the stream cannot be read.
+   */
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    for (int count = in.read(chunk); count >= 0; count = in.read(chunk)) {
+      out.write(chunk, 0, count);
+    }
+    return out.toByteArray();
+  }
 }